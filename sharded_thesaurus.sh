@@ -0,0 +1,42 @@
+#!/bin/bash
+
+# Build a thesaurus in several processes at once and merge their output (the same thesaurus as run.MakeThesaurus).
+# Usage: ./sharded_thesaurus.sh <embeddings> <thesaurus> <number-of-shards>
+# To spread shards over several machines, run "java -cp target/capn-1.0-SNAPSHOT.jar run.MakeThesaurus <embeddings> <thesaurus>.shardI I/N" on each
+# (with the same embeddings and properties), then run.MergeThesaurusShards on all the shard files.
+
+# run from the jar (mvn package), which holds the Vector API kernels for Java 17+ as well as the plain classes
+CLASSPATH=target/capn-1.0-SNAPSHOT.jar
+if [ ! -f $CLASSPATH ]; then
+	echo "$CLASSPATH not found; run mvn package first" >&2
+	exit 1
+fi
+
+# the Vector API kernels need the incubator module; older JDKs reject the option and use the plain kernels
+JAVA_OPTS=()
+if java --add-modules jdk.incubator.vector -version > /dev/null 2>&1; then
+	JAVA_OPTS+=(--add-modules jdk.incubator.vector)
+fi
+
+embeddings=$1
+thesaurus=$2
+nshards=$3
+
+# threads for each process (defaults to splitting this machine's processors among them)
+threads=${THREADS:-$(( ($(nproc) + nshards - 1) / nshards ))}
+
+pids=()
+shards=()
+for (( i=0; i<nshards; i++ ))
+do
+	shards+=($thesaurus.shard$i)
+	java "${JAVA_OPTS[@]}" -Dthreads=$threads -cp $CLASSPATH run.MakeThesaurus $embeddings $thesaurus.shard$i $i/$nshards &
+	pids+=($!)
+done
+
+for pid in "${pids[@]}"
+do
+	wait $pid || { echo "a shard failed; not merging" >&2; exit 1; }
+done
+
+java "${JAVA_OPTS[@]}" -cp $CLASSPATH run.MergeThesaurusShards $thesaurus "${shards[@]}" && rm "${shards[@]}"
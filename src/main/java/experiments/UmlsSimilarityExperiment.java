@@ -3,6 +3,7 @@ package experiments;
 import io.Word2vecReader;
 import phrases.Phrase;
 import semantics.Embeddings;
+import semantics.WordEmbedding;
 import textprocessing.TextProcessor;
 import thesaurus.OrthographicDistance;
 import util.Pair;
@@ -206,10 +207,19 @@ public class UmlsSimilarityExperiment {
     }
 
     public void calculateOrthographicDistances(Double permutationPenalty, OrthographicDistance distanceMetric) {
+        calculateOrthographicDistances(permutationPenalty, distanceMetric, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Calculate orthographic distances only where they are at most a maximum (such as the thesaurus's orthoMaximum),
+     * which is much faster when most pairs are dissimilar; larger distances are recorded as infinity
+     * @param maxDistance the largest normalized distance of interest
+     */
+    public void calculateOrthographicDistances(Double permutationPenalty, OrthographicDistance distanceMetric, double maxDistance) {
         int n = pairs.size();
         double[] distances = new double[n];
 
-        Threading.chunkAndThread(n, OrthoDistThread.class, distances, distanceMetric, pairs, false, permutationPenalty);
+        Threading.chunkAndThread(n, OrthoDistThread.class, distances, distanceMetric, pairs, false, maxDistance, permutationPenalty);
 
         orthoDistances = new ArrayList<>(n);
         for(int i=0; i<n; i++) {
@@ -226,14 +236,17 @@ public class UmlsSimilarityExperiment {
         private Double permutationPenalty;
         private List<Pair<Phrase>> pairs;
         private boolean forAbbreviations;
+        // normalized distances above this are not calculated exactly
+        private double maxDistance;
         @Override
         public void initializeParams(Object[] args) {
             distances = (double[]) args[0];
             orthoDist = (OrthographicDistance) args[1];
             pairs = (List<Pair<Phrase>>) args[2];
             forAbbreviations = (boolean) args[3];
+            maxDistance = (double) args[4];
             if(!forAbbreviations) {
-                permutationPenalty = (Double) args[4];
+                permutationPenalty = (Double) args[5];
             } else {
                 permutationPenalty = null;
             }
@@ -245,13 +258,14 @@ public class UmlsSimilarityExperiment {
                 Phrase p2 = pairs.get(i).two();
                 double normalizedDist;
                 if(forAbbreviations) {
-                    double dist = orthoDist.distance(p1, p2);
+                    double dist = orthoDist.distanceWithin(p1, p2, maxDistance * p1.length());
                     normalizedDist = dist / p1.length();
                 } else {
-                    double dist = orthoDist.shortestPermutedDistance(p1, p2, permutationPenalty);
-                    normalizedDist = dist / Math.max(p1.length(), p2.length());
+                    int longer = Math.max(p1.length(), p2.length());
+                    double dist = orthoDist.shortestPermutedDistanceWithin(p1, p2, permutationPenalty, maxDistance * longer);
+                    normalizedDist = dist / longer;
                 }
-                distances[i] = normalizedDist;
+                distances[i] = normalizedDist > maxDistance ? Double.POSITIVE_INFINITY : normalizedDist;
                 if(i % 1000 == 0) {
                     LOGGER.info(i + " orthographic distance calculated on this thread");
                 }
@@ -267,10 +281,19 @@ public class UmlsSimilarityExperiment {
         calculateAbbrDistances(OrthographicDistance.forAbbreviations());
     }
     public void calculateAbbrDistances(OrthographicDistance distanceMetric) {
+        calculateAbbrDistances(distanceMetric, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Calculate abbreviation distances only where they are at most a maximum (such as the thesaurus's abbrMaximum);
+     * larger distances are recorded as infinity
+     * @param maxDistance the largest normalized distance of interest
+     */
+    public void calculateAbbrDistances(OrthographicDistance distanceMetric, double maxDistance) {
         int n = pairs.size();
         double[] distances = new double[n];
 
-        Threading.chunkAndThread(n, OrthoDistThread.class, distances, distanceMetric, pairs, true);
+        Threading.chunkAndThread(n, OrthoDistThread.class, distances, distanceMetric, pairs, true, maxDistance);
 
         abbrDistances = new ArrayList<>(n);
         for(int i=0; i<n; i++) {
@@ -288,8 +311,10 @@ public class UmlsSimilarityExperiment {
         emb.normalizeAll();
         int calculated = 0;
         for(Pair<Phrase> pair : pairs) {
-            if(emb.contains(pair.one()) && emb.contains(pair.two())) {
-                semanticSimilarities.add(emb.get(pair.one()).dot(emb.get(pair.two())));
+            WordEmbedding one = emb.get(pair.one());
+            WordEmbedding two = emb.get(pair.two());
+            if(one != null && two != null) {
+                semanticSimilarities.add(one.dot(two));
                 calculated++;
             } else {
                 semanticSimilarities.add(null);
@@ -428,7 +453,9 @@ public class UmlsSimilarityExperiment {
             } else {
                 String embeddings = args[0];
                 saveTo = args[1];
-                Embeddings emb = Word2vecReader.readBinFile(embeddings);
+                Embeddings emb = PropertiesLoader.getMapEmbeddings()
+                        ? Word2vecReader.mapBinFile(embeddings)
+                        : Word2vecReader.readBinFile(embeddings);
                 exp = luiExperiment(PropertiesLoader.getMrconsoPath().toFile(),
                         PropertiesLoader.getLrabrPath().toFile(),
                         PropertiesLoader.getTextProcessor(),
@@ -467,7 +494,9 @@ public class UmlsSimilarityExperiment {
             if(args.length > 2) {
                 saveTo = args[2];
             }
-            Embeddings emb = Word2vecReader.readBinFile(embeddings);
+            Embeddings emb = PropertiesLoader.getMapEmbeddings()
+                    ? Word2vecReader.mapBinFile(embeddings)
+                    : Word2vecReader.readBinFile(embeddings);
             UmlsSimilarityExperiment exp = randomPairsExperiment(PropertiesLoader.getMrconsoPath().toFile(), numPairs, PropertiesLoader.getTextProcessor(), PropertiesLoader.getEmbeddingsCaseSensitive());
             exp.calculateSemanticSimilarities(emb);
             exp.calculateOrthographicDistances(PropertiesLoader.getPermutationPenalty());
@@ -2,12 +2,18 @@ package io;
 
 import phrases.Phrase;
 import semantics.Embeddings;
+import semantics.MappedEmbeddings;
 import semantics.WordEmbedding;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -20,6 +26,10 @@ public class Word2vecReader {
 
     private static Logger LOGGER = Logger.getLogger(Word2vecReader.class.getName());
 
+    // suffix of the sidecar file that stores the terms and vector offsets of a bin file for fast mapping
+    private static final String OFFSETS_SUFFIX = ".offsets";
+    private static final int OFFSETS_VERSION = 1;
+
     public static Embeddings readBinFile(String filename) throws IOException {
         return readBinFile(filename, 0);
     }
@@ -77,6 +87,159 @@ public class Word2vecReader {
         return wes;
     }
 
+    /**
+     * Open a word2vec binary file as memory-mapped embeddings, without copying the vectors onto the heap.
+     * The first time a file is opened, its terms and vector offsets are saved to a sidecar file
+     * (the bin filename plus ".offsets") so that later opens do not need to scan the bin file.
+     * @param filename the word2vec binary file
+     * @return embeddings backed by the file
+     * @throws IOException
+     */
+    public static MappedEmbeddings mapBinFile(String filename) throws IOException {
+        return mapBinFile(filename, 0);
+    }
+
+    public static MappedEmbeddings mapBinFile(String filename, int maxWords) throws IOException {
+        Path binPath = Paths.get(filename);
+        Path offsetsPath = Paths.get(filename + OFFSETS_SUFFIX);
+        BinFileIndex index = null;
+        if(Files.exists(offsetsPath)) {
+            index = BinFileIndex.read(offsetsPath, binPath);
+            if(index == null) {
+                LOGGER.info("Offsets file " + offsetsPath + " is out of date; rebuilding");
+            }
+        }
+        if(index == null) {
+            index = BinFileIndex.build(binPath);
+            try {
+                index.write(offsetsPath, binPath);
+            } catch(IOException e) {
+                LOGGER.warning("Couldn't save offsets file " + offsetsPath + "; it will be rebuilt next time");
+            }
+        }
+        int nWords = index.words.size();
+        if (maxWords > 0 && maxWords < nWords) {
+            nWords = maxWords;
+        }
+        List<Phrase> phrases = new ArrayList<>(nWords);
+        List<Long> offsets = new ArrayList<>(nWords);
+        for(int i=0; i<nWords; i++) {
+            Phrase newPhrase = new Phrase(index.words.get(i), "_+");
+            if (newPhrase.length() > 0) {
+                phrases.add(newPhrase);
+                offsets.add(index.offsets[i]);
+            }
+        }
+        long[] offsetArray = new long[offsets.size()];
+        for(int i=0; i<offsetArray.length; i++) {
+            offsetArray[i] = offsets.get(i);
+        }
+        return new MappedEmbeddings(binPath, index.dimensionality, phrases, offsetArray);
+    }
+
+    /**
+     * The raw words of a bin file and the byte offset of each word's vector
+     */
+    private static class BinFileIndex {
+        private final int dimensionality;
+        private final List<String> words;
+        private final long[] offsets;
+
+        private BinFileIndex(int dimensionality, List<String> words, long[] offsets) {
+            this.dimensionality = dimensionality;
+            this.words = words;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Scan a bin file, parsing words the same way readBinFile() does but skipping over the vectors
+         */
+        private static BinFileIndex build(Path binPath) throws IOException {
+            LOGGER.info("Indexing word2vec binary file " + binPath + "...");
+            try (InputStream reader = new BufferedInputStream(new FileInputStream(binPath.toFile()), 1 << 16)) {
+                long position = 0;
+                char c;
+                StringBuilder nWordsStr = new StringBuilder();
+                while((c = (char) reader.read()) != ' ') {
+                    nWordsStr.append(c);
+                    position++;
+                }
+                position++;
+                StringBuilder sizeStr = new StringBuilder();
+                while((c = (char) reader.read()) != '\n') {
+                    sizeStr.append(c);
+                    position++;
+                }
+                position++;
+                int nWords = Integer.parseInt(nWordsStr.toString());
+                int size = Integer.parseInt(sizeStr.toString());
+                List<String> words = new ArrayList<>(nWords);
+                long[] offsets = new long[nWords];
+                char firstchar = '\n';
+                for(int i=0; i<nWords; i++) {
+                    StringBuilder word = new StringBuilder();
+                    if(firstchar != '\n')
+                        word.append(firstchar);
+                    while((c = (char) reader.read()) != ' ') {
+                        word.append(c);
+                        position++;
+                    }
+                    position++;
+                    words.add(word.toString());
+                    offsets[i] = position;
+                    long toSkip = size * 4L;
+                    while(toSkip > 0) {
+                        long skipped = reader.skip(toSkip);
+                        if(skipped <= 0) {
+                            throw new EOFException("Unexpected end of word2vec file " + binPath);
+                        }
+                        toSkip -= skipped;
+                    }
+                    position += size * 4L;
+                    firstchar = (char) reader.read();
+                    position++;
+                }
+                return new BinFileIndex(size, words, offsets);
+            }
+        }
+
+        /**
+         * Read a saved index, or return null if it was made from a different version of the bin file
+         */
+        private static BinFileIndex read(Path offsetsPath, Path binPath) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(offsetsPath)))) {
+                if(in.readInt() != OFFSETS_VERSION
+                        || in.readLong() != Files.size(binPath)
+                        || in.readLong() != Files.getLastModifiedTime(binPath).toMillis()) {
+                    return null;
+                }
+                int dimensionality = in.readInt();
+                int nWords = in.readInt();
+                List<String> words = new ArrayList<>(nWords);
+                long[] offsets = new long[nWords];
+                for(int i=0; i<nWords; i++) {
+                    words.add(in.readUTF());
+                    offsets[i] = in.readLong();
+                }
+                return new BinFileIndex(dimensionality, words, offsets);
+            }
+        }
+
+        private void write(Path offsetsPath, Path binPath) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(offsetsPath)))) {
+                out.writeInt(OFFSETS_VERSION);
+                out.writeLong(Files.size(binPath));
+                out.writeLong(Files.getLastModifiedTime(binPath).toMillis());
+                out.writeInt(dimensionality);
+                out.writeInt(words.size());
+                for(int i=0; i<words.size(); i++) {
+                    out.writeUTF(words.get(i));
+                    out.writeLong(offsets[i]);
+                }
+            }
+        }
+    }
+
     /**
      * Read all words that have at least a certain number of appearances in the corpus
      * @param binFile the binary file of embeddings
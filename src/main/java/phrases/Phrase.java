@@ -14,6 +14,8 @@ public final class Phrase implements Iterable<String>, Comparable<Phrase> {
     private static Logger LOGGER = Logger.getLogger(Phrase.class.getName());
 
     private final String form;
+    // the phrase in lower case, as orthographic distances compare it (made when first needed)
+    private volatile char[] lowerCaseChars;
 
     public Phrase(String phrase) {
         this(phrase, "\\s+");
@@ -96,6 +98,19 @@ public final class Phrase implements Iterable<String>, Comparable<Phrase> {
         return form;
     }
 
+    /**
+     * The characters of this phrase in lower case (as String.toLowerCase() gives them), kept so that comparing
+     * a phrase many times doesn't convert it every time. The array must not be modified
+     */
+    public char[] lowerCaseChars() {
+        char[] chars = lowerCaseChars;
+        if(chars == null) {
+            chars = form.toLowerCase().toCharArray();
+            lowerCaseChars = chars;
+        }
+        return chars;
+    }
+
     /**
      * Merge into a single string with a given delimiter
      * @param delim the delimiter to use
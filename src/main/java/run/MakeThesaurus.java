@@ -2,30 +2,84 @@ package run;
 
 import io.Word2vecReader;
 import semantics.Embeddings;
+import semantics.EmbeddingsFile;
+import semantics.HnswIndex;
+import semantics.LshIndex;
 import thesaurus.Thesaurus;
 import thesaurus.ThesaurusMaker;
+import thesaurus.ThesaurusShards;
 import util.PropertiesLoader;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * todo: document
+ * Usage: MakeThesaurus embeddings thesaurus.txt [i/N]
+ * With a shard (i of N, counting from 0), builds only that shard's headwords and writes a shard file;
+ * see MergeThesaurusShards and sharded_thesaurus.sh.
  *
  * Created by gpfinley on 12/7/16.
  */
 public class MakeThesaurus {
 
+    // number of headwords used to measure the recall of an LSH index
+    private static final int RECALL_SAMPLE = 200;
+    // suffix of the file that finished headwords are saved to during the build (when checkpointing)
+    private static final String CHECKPOINT_SUFFIX = ".partial";
+
     public static void main(String[] args) throws IOException {
 
         // todo: permit use of glove with proper flags
         String embeddingsFile = args[0];
         String saveTo = args[1];
 
+        Embeddings emb = loadEmbeddings(embeddingsFile);
+        ThesaurusMaker.ThesaurusMakerBuilder builder = makerBuilder(emb, embeddingsFile);
+        if(args.length > 2) {
+            int[] shard = ThesaurusShards.parseSpec(args[2]);
+            builder.setShard(shard[0], shard[1], PropertiesLoader.getShardByHash());
+        }
+        int checkpointInterval = PropertiesLoader.getCheckpointInterval();
+        if(checkpointInterval > 0) {
+            builder.setCheckpoint(Paths.get(saveTo + CHECKPOINT_SUFFIX), checkpointInterval);
+        }
+        ThesaurusMaker thesaurusMaker = builder.build();
+
+        // shard files are always streamed
+        if(PropertiesLoader.getStreamThesaurus() || args.length > 2) {
+            thesaurusMaker.buildThesaurus(new FileOutputStream(saveTo));
+        } else {
+            Thesaurus thesaurus = thesaurusMaker.buildThesaurus();
+            thesaurus.save(new FileOutputStream(saveTo));
+        }
+        thesaurusMaker.deleteCheckpoint();
+    }
+
+    /**
+     * Read embeddings from a file saved by SaveEmbeddings or a word2vec bin file, mapping them if so configured
+     */
+    static Embeddings loadEmbeddings(String embeddingsFile) throws IOException {
+        // files saved by SaveEmbeddings are recognized by their extension; anything else is a word2vec bin file
+        boolean savedEmbeddings = embeddingsFile.endsWith(EmbeddingsFile.SUFFIX);
         Embeddings emb;
-        emb = Word2vecReader.readBinFile(embeddingsFile);
+        if(PropertiesLoader.getMapEmbeddings()) {
+            emb = savedEmbeddings ? EmbeddingsFile.map(Paths.get(embeddingsFile)) : Word2vecReader.mapBinFile(embeddingsFile);
+        } else {
+            emb = savedEmbeddings ? EmbeddingsFile.read(Paths.get(embeddingsFile)) : Word2vecReader.readBinFile(embeddingsFile);
+        }
+        return emb;
+    }
 
-        ThesaurusMaker thesaurusMaker = new ThesaurusMaker.ThesaurusMakerBuilder(emb)
+    /**
+     * Configure a ThesaurusMaker from the properties file
+     * @param emb the embeddings
+     * @param embeddingsFile the file they were read from (an HNSW index is saved alongside it)
+     */
+    static ThesaurusMaker.ThesaurusMakerBuilder makerBuilder(Embeddings emb, String embeddingsFile) {
+        ThesaurusMaker.ThesaurusMakerBuilder builder = new ThesaurusMaker.ThesaurusMakerBuilder(emb)
                 .setSemanticThreshold(PropertiesLoader.getSemanticMinimum())
                 .setOrthoThreshold(PropertiesLoader.getOrthoMaximum())
                 .setAbbrThreshold(PropertiesLoader.getAbbrMaximum())
@@ -34,9 +88,39 @@ public class MakeThesaurus {
                 .setCaseSensitive(PropertiesLoader.getEmbeddingsCaseSensitive())
                 .setSemanticOrthoWeightRatio(PropertiesLoader.getSemanticOrthoWeightRatio())
                 .setPermutationPenalty(PropertiesLoader.getPermutationPenalty())
-                .build();
+                .setSemanticBatchSize(PropertiesLoader.getSemanticBatchSize())
+                .setParallelHeadwords(PropertiesLoader.getParallelHeadwords())
+                .setSymmetricPairs(PropertiesLoader.getSymmetricPairs())
+                .setQuantization(PropertiesLoader.getEmbeddingQuantization())
+                .setCandidateOrder(PropertiesLoader.getCandidateOrder());
 
-        Thesaurus thesaurus = thesaurusMaker.buildThesaurus();
-        thesaurus.save(new FileOutputStream(saveTo));
+        String semanticIndex = PropertiesLoader.getSemanticIndex();
+        if(semanticIndex.equals("hnsw")) {
+            HnswIndex.HnswIndexBuilder indexBuilder = new HnswIndex.HnswIndexBuilder()
+                    .setM(PropertiesLoader.getHnswM())
+                    .setEfConstruction(PropertiesLoader.getHnswEfConstruction())
+                    .setEfSearch(PropertiesLoader.getHnswEfSearch());
+            Path indexFile = Paths.get(embeddingsFile + HnswIndex.FILE_SUFFIX);
+            builder.useNeighborIndex(e -> indexBuilder.loadOrBuild(indexFile, e));
+        } else if(semanticIndex.equals("lsh")) {
+            LshIndex.LshIndexBuilder indexBuilder = new LshIndex.LshIndexBuilder()
+                    .setBits(PropertiesLoader.getLshBits())
+                    .setTables(PropertiesLoader.getLshTables())
+                    .setProbeRadius(PropertiesLoader.getLshProbeRadius());
+            double threshold = PropertiesLoader.getSemanticMinimum();
+            builder.useNeighborIndex(e -> {
+                LshIndex index = indexBuilder.build(e);
+                // measure recall on a sample of headwords spread through the vocabulary
+                int[] sample = new int[Math.min(RECALL_SAMPLE, e.size())];
+                for(int i=0; i<sample.length; i++) {
+                    sample[i] = (int) ((long) i * e.size() / sample.length);
+                }
+                index.measureRecall(sample, threshold);
+                return index;
+            });
+        } else if(!semanticIndex.equals("none")) {
+            throw new IllegalArgumentException("Unknown semantic index type: " + semanticIndex);
+        }
+        return builder;
     }
 }
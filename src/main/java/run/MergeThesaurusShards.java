@@ -0,0 +1,27 @@
+package run;
+
+import thesaurus.ThesaurusShards;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merge the shard files written by MakeThesaurus (run with a shard argument) into one thesaurus,
+ * identical to the one a single MakeThesaurus run would have saved.
+ * Usage: MergeThesaurusShards thesaurus.txt shard-file...
+ */
+public class MergeThesaurusShards {
+
+    public static void main(String[] args) throws IOException {
+        String saveTo = args[0];
+        List<Path> shardFiles = new ArrayList<>();
+        for(int i=1; i<args.length; i++) {
+            shardFiles.add(Paths.get(args[i]));
+        }
+        ThesaurusShards.merge(shardFiles, new FileOutputStream(saveTo));
+    }
+}
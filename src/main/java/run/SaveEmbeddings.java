@@ -0,0 +1,33 @@
+package run;
+
+import io.Word2vecReader;
+import phrases.Phrase;
+import semantics.Embeddings;
+import semantics.EmbeddingsFile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Convert a word2vec binary file to the faster-loading format of EmbeddingsFile, with vectors normalized.
+ * Optionally takes a word2vec vocab file to store word frequencies.
+ * Usage: SaveEmbeddings vectors.bin vectors.emb [vocab.txt]
+ */
+public class SaveEmbeddings {
+
+    public static void main(String[] args) throws IOException {
+        String binFile = args[0];
+        String saveTo = args[1];
+
+        Embeddings emb = Word2vecReader.readBinFile(binFile);
+        if(args.length > 2) {
+            Map<Phrase, Integer> counts = Word2vecReader.readVocabFile(args[2]);
+            for(Map.Entry<Phrase, Integer> entry : counts.entrySet()) {
+                emb.setWordFrequency(entry.getKey(), entry.getValue());
+            }
+        }
+        emb.normalizeAll();
+        EmbeddingsFile.write(emb, Paths.get(saveTo));
+    }
+}
@@ -0,0 +1,26 @@
+package run;
+
+import semantics.Embeddings;
+import thesaurus.PairScores;
+import thesaurus.ThesaurusMaker;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Find and score pairs as MakeThesaurus does, and save their raw scores for SweepThesaurus.
+ * Set the thresholds in the properties to the loosest to be tried, and leave the overall threshold unset.
+ * Usage: SavePairScores embeddings pair-scores.bin
+ */
+public class SavePairScores {
+
+    public static void main(String[] args) throws IOException {
+        String embeddingsFile = args[0];
+        String saveTo = args[1];
+
+        Embeddings emb = MakeThesaurus.loadEmbeddings(embeddingsFile);
+        ThesaurusMaker thesaurusMaker = MakeThesaurus.makerBuilder(emb, embeddingsFile).build();
+        PairScores scores = thesaurusMaker.buildPairScores();
+        scores.save(Paths.get(saveTo));
+    }
+}
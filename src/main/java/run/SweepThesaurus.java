@@ -0,0 +1,47 @@
+package run;
+
+import thesaurus.PairScores;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Try many threshold and weight settings on pair scores saved by SavePairScores, printing a summary of the thesaurus
+ * each would produce (and optionally saving each thesaurus).
+ * Each line of the settings file gives, separated by whitespace:
+ *      semanticMinimum orthoMaximum abbrMaximum semanticOrthoWeightRatio [overallThreshold]
+ * Blank lines and lines starting with # are skipped.
+ * Usage: SweepThesaurus pair-scores.bin settings.txt [thesaurus-prefix]
+ * With a prefix, the thesaurus for the settings on line i is saved to prefix + i + ".txt".
+ */
+public class SweepThesaurus {
+
+    public static void main(String[] args) throws IOException {
+        PairScores scores = PairScores.load(Paths.get(args[0]));
+        String prefix = args.length > 2 ? args[2] : null;
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[1]))) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                double semanticMinimum = Double.parseDouble(fields[0]);
+                double orthoMaximum = Double.parseDouble(fields[1]);
+                double abbrMaximum = Double.parseDouble(fields[2]);
+                double ratio = Double.parseDouble(fields[3]);
+                Double overallThreshold = fields.length > 4 ? Double.parseDouble(fields[4]) : null;
+                System.out.println(line + "\t" + scores.summarize(semanticMinimum, orthoMaximum, abbrMaximum, ratio, overallThreshold));
+                if(prefix != null) {
+                    scores.toThesaurus(semanticMinimum, orthoMaximum, abbrMaximum, ratio, overallThreshold)
+                            .save(new FileOutputStream(prefix + lineNumber + ".txt"));
+                }
+            }
+        }
+    }
+}
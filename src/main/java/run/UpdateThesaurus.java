@@ -0,0 +1,37 @@
+package run;
+
+import semantics.Embeddings;
+import thesaurus.Thesaurus;
+import thesaurus.ThesaurusMaker;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Update a thesaurus for new embeddings (such as retrained on a larger corpus, or with terms added),
+ * computing only the entries that involve new or changed terms rather than building the whole thesaurus again.
+ * Uses the same properties as MakeThesaurus, which should be the ones the old thesaurus was built with.
+ * Usage: UpdateThesaurus old-thesaurus.txt old-embeddings new-embeddings new-thesaurus.txt
+ */
+public class UpdateThesaurus {
+
+    public static void main(String[] args) throws IOException {
+        String oldThesaurusFile = args[0];
+        String oldEmbeddingsFile = args[1];
+        String newEmbeddingsFile = args[2];
+        String saveTo = args[3];
+
+        Thesaurus oldThesaurus;
+        try (InputStream in = new FileInputStream(oldThesaurusFile)) {
+            oldThesaurus = Thesaurus.load(in);
+        }
+        Embeddings oldEmb = MakeThesaurus.loadEmbeddings(oldEmbeddingsFile);
+        Embeddings newEmb = MakeThesaurus.loadEmbeddings(newEmbeddingsFile);
+        ThesaurusMaker thesaurusMaker = MakeThesaurus.makerBuilder(newEmb, newEmbeddingsFile).build();
+
+        Thesaurus thesaurus = thesaurusMaker.updateThesaurus(oldThesaurus, oldEmb);
+        thesaurus.save(new FileOutputStream(saveTo));
+    }
+}
@@ -7,7 +7,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.*;
+import java.util.zip.CRC32;
 
 /**
  * Represents a collection of terms (including phrases) and word embeddings for them
@@ -15,23 +18,29 @@ import java.util.*;
  */
 public class Embeddings implements Iterable<Phrase>, Serializable {
 
-    // For looking up the index based on the word
-    private Map<Phrase,Integer> dictionary;
-    // For finding the word based on the index
-    private List<Phrase> terms;
-    private List<WordEmbedding> vectors;
+    // Terms in index order, with an open-addressing table for looking up the index of a term
+    private PhraseIndex terms;
 
-    // Word frequency (from vocab.txt file)
-    private List<Integer> frequency;
+    // Vectors are stored row-major in large fixed-size chunks rather than one array per term,
+    // so that full-vocabulary scans run over contiguous memory.
+    // Chunks are never reallocated, so views returned by get() stay valid as terms are added.
+    private static final int CHUNK_SHIFT = 12;
+    private static final int ROWS_PER_CHUNK = 1 << CHUNK_SHIFT;
+    private List<float[]> chunks;
+
+    // Word frequency (from vocab.txt file), by index; grown as terms are added
+    private int[] frequency;
 
     private int dimensionality;
 
+    // optional reduced-precision copy of the vectors for threshold scans (not serialized)
+    private transient QuantizedVectors quantized;
+
     public Embeddings(int dimensionality) {
         this.dimensionality = dimensionality;
-        dictionary = new HashMap<>();
-        terms = new ArrayList<>();
-        vectors = new ArrayList<>();
-        frequency = new ArrayList<>();
+        terms = new PhraseIndex();
+        chunks = new ArrayList<>();
+        frequency = new int[16];
     }
 
     public int dimensionality() {
@@ -45,66 +54,265 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
      * @return the counts of that phrase
      */
     public int getFrequency(Phrase phrase) {
-        Integer wordInt = dictionary.get(phrase);
-        if(wordInt == null) return 0;
-        return frequency.get(dictionary.get(phrase));
+        int index = terms.indexOf(phrase);
+        if(index < 0) return 0;
+        return frequency[index];
     }
 
     public int getRank(Phrase phrase) {
-        return dictionary.get(phrase) + 1;
+        int index = terms.indexOf(phrase);
+        if(index < 0) throw new NoSuchElementException("No embedding for " + phrase);
+        return index + 1;
     }
 
     public void setWordFrequency(Phrase phrase, int freq) {
-        if(!dictionary.containsKey(phrase)) return;
-        frequency.set(dictionary.get(phrase), freq);
+        int index = terms.indexOf(phrase);
+        if(index < 0) return;
+        frequency[index] = freq;
+    }
+
+    /**
+     * Get the index of a phrase (its row in the matrix, and its position in iteration order)
+     * @param phrase the phrase to look up
+     * @return its index, or -1 if not present
+     */
+    public int indexOf(Phrase phrase) {
+        return terms.indexOf(phrase);
     }
 
     public void addWordAndEmbedding(Phrase phrase, WordEmbedding embedding) {
-        if(dictionary.containsKey(phrase)) {
+        if(terms.indexOf(phrase) >= 0) {
             return;
         }
-        dictionary.put(phrase, dictionary.size());
-        terms.add(phrase);
-        vectors.add(embedding);
-        frequency.add(-1);
+        if(embedding.size() != dimensionality) {
+            throw new IllegalArgumentException("Embedding for " + phrase + " has " + embedding.size()
+                    + " dimensions; expected " + dimensionality);
+        }
+        appendVector(embedding);
+        addTerm(phrase);
+    }
+
+    /**
+     * Register a term at the next index without storing a vector for it.
+     * For subclasses that supply their own vector storage.
+     * @param phrase the term to add
+     * @return false if the term was already present (and was not added)
+     */
+    protected boolean addTerm(Phrase phrase) {
+        int index = terms.size();
+        if(!terms.add(phrase)) {
+            return false;
+        }
+        if(index == frequency.length) {
+            frequency = Arrays.copyOf(frequency, index * 2);
+        }
+        frequency[index] = -1;
+        dropQuantization();
+        return true;
+    }
+
+    /**
+     * Get the term at a given index
+     * @param index an index between 0 and size()
+     * @return the term
+     */
+    protected Phrase term(int index) {
+        return terms.get(index);
+    }
+
+    // Vector storage.
+    // Everything that touches the vectors themselves goes through the methods below,
+    // which subclasses may override to keep vectors somewhere other than the heap matrix.
+
+    private float[] chunk(int row) {
+        return chunks.get(row >>> CHUNK_SHIFT);
+    }
+
+    private int rowOffset(int row) {
+        return (row & (ROWS_PER_CHUNK - 1)) * dimensionality;
+    }
+
+    /**
+     * Store a copy of a vector at the next index (called before the term itself is added)
+     * @param embedding a vector of this object's dimensionality
+     */
+    protected void appendVector(WordEmbedding embedding) {
+        int row = terms.size();
+        if(row >> CHUNK_SHIFT == chunks.size()) {
+            chunks.add(new float[ROWS_PER_CHUNK * dimensionality]);
+        }
+        System.arraycopy(embedding.data(), embedding.offset(), chunk(row), rowOffset(row), dimensionality);
+    }
+
+    /**
+     * Get a view onto the stored vector at a given index (modifying it modifies this object)
+     */
+    protected WordEmbedding vector(int row) {
+        return new WordEmbedding(chunk(row), rowOffset(row), dimensionality);
+    }
+
+    /**
+     * Fill part of an array with the dot product of a vector with every stored vector in a range of indices.
+     * Walks each chunk sequentially.
+     * @param query a vector of this object's dimensionality
+     * @param begin first index (inclusive)
+     * @param end last index (exclusive)
+     * @param results array to fill
+     * @param resultsOffset where in the results array to put the score for index begin
+     */
+    protected void dotRange(WordEmbedding query, int begin, int end, double[] results, int resultsOffset) {
+        VectorKernels kernels = VectorKernels.INSTANCE;
+        float[] q = query.data();
+        int qOffset = query.offset();
+        int row = begin;
+        while(row < end) {
+            float[] chunk = chunk(row);
+            int chunkEnd = Math.min(end, ((row >>> CHUNK_SHIFT) + 1) << CHUNK_SHIFT);
+            for(int offset = rowOffset(row); row < chunkEnd; row++, offset += dimensionality) {
+                results[resultsOffset + row - begin] = kernels.dot(chunk, offset, q, qOffset, dimensionality);
+            }
+        }
+    }
+
+    /**
+     * Dot product of a vector with the stored vector at one index, exactly as a scan scores it
+     */
+    public double dot(WordEmbedding query, int row) {
+        double[] result = new double[1];
+        dotRange(query, row, row + 1, result, 0);
+        return result[0];
+    }
+
+    /**
+     * A hash of the terms and of every float of every vector (a CRC over their bits), for checking that a saved index
+     * or partial result was built from these embeddings
+     */
+    public long fingerprint() {
+        long hash = 31L * size() + dimensionality;
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = ByteBuffer.allocate(4 * dimensionality);
+        for(int row=0; row<size(); row++) {
+            hash = 31 * hash + term(row).toString().hashCode();
+            WordEmbedding vector = vector(row);
+            float[] data = vector.data();
+            int offset = vector.offset();
+            bytes.clear();
+            for(int i=0; i<dimensionality; i++) {
+                bytes.putFloat(data[offset + i]);
+            }
+            bytes.flip();
+            crc.update(bytes);
+        }
+        return 31 * hash + crc.getValue();
+    }
+
+    /**
+     * Fill part of an array with dot products for a range of indices, exactly wherever they might meet a threshold.
+     * If the vectors are quantized, scores come from the quantized vectors, and only scores within the error bound
+     * of the threshold are recomputed exactly; the remaining scores are approximate but certain to be below it.
+     * @param query a vector of this object's dimensionality
+     * @param begin first index (inclusive)
+     * @param end last index (exclusive)
+     * @param threshold scores at or above this value are exact
+     * @param results array to fill
+     * @param resultsOffset where in the results array to put the score for index begin
+     */
+    private void dotRangeAbove(WordEmbedding query, int begin, int end, double threshold, double[] results, int resultsOffset) {
+        QuantizedVectors quantized = this.quantized;
+        if(quantized == null || threshold == Double.NEGATIVE_INFINITY) {
+            dotRange(query, begin, end, results, resultsOffset);
+            return;
+        }
+        quantized.dotRange(query, begin, end, results, resultsOffset);
+        double[] queryNorms = quantized.queryNorms(query);
+        for(int row=begin; row<end; row++) {
+            int i = resultsOffset + row - begin;
+            if(!(results[i] + quantized.errorBound(row, queryNorms) < threshold)) {
+                dotRange(query, row, row + 1, results, i);
+            }
+        }
+    }
+
+    /**
+     * Copy the vector at one index over the vector at another (used when compacting)
+     */
+    protected void moveVector(int from, int to) {
+        System.arraycopy(chunk(from), rowOffset(from), chunk(to), rowOffset(to), dimensionality);
+    }
+
+    /**
+     * Release storage for all vectors at or beyond an index
+     */
+    protected void truncateVectors(int size) {
+        int chunksNeeded = (size + ROWS_PER_CHUNK - 1) >>> CHUNK_SHIFT;
+        while(chunks.size() > chunksNeeded) {
+            chunks.remove(chunks.size() - 1);
+        }
     }
 
     public WordEmbedding get(String string) {
         return get(new Phrase(string));
     }
 
+    /**
+     * Get the embedding for a phrase. The returned object is a view onto the stored vector, not a copy.
+     * @param phrase the phrase to look up
+     * @return its embedding, or null if not present
+     */
     public WordEmbedding get(Phrase phrase) {
-        if(!dictionary.containsKey(phrase)) return null;
-        return vectors.get(dictionary.get(phrase));
+        int index = terms.indexOf(phrase);
+        if(index < 0) return null;
+        return vector(index);
     }
 
     /**
-     * Remove all embeddings other than those provided in a set of Phrases
+     * Remove all embeddings other than those provided in a set of Phrases.
+     * Terms, frequencies, and vectors are all compacted in place, so views obtained before filtering are invalidated.
      * @param toKeep
      */
     public void filterOn(Set<Phrase> toKeep) {
-        for(int i=0; i<size(); i++) {
-            if(!toKeep.contains(terms.get(i))) {
-                terms.set(i, null);
-                vectors.set(i, null);
-                dictionary.remove(terms.get(i));
-            }
-        }
-        List<Phrase> newTerms = new ArrayList<>();
-        List<WordEmbedding> newVectors = new ArrayList<>();
-        Map<Phrase, Integer> newDictionary = new HashMap<>();
-        int j=0;
+        int j = 0;
         for(int i=0; i<terms.size(); i++) {
-            if(terms.get(i) != null) {
-                newDictionary.put(terms.get(i), j);
-                newTerms.add(terms.get(i));
-                newVectors.add(vectors.get(i));
+            if(toKeep.contains(terms.get(i))) {
+                if(i != j) {
+                    terms.move(i, j);
+                    frequency[j] = frequency[i];
+                    moveVector(i, j);
+                }
                 j++;
             }
         }
-        terms = newTerms;
-        dictionary = newDictionary;
-        vectors = newVectors;
+        terms.truncate(j);
+        truncateVectors(j);
+        dropQuantization();
+    }
+
+    /**
+     * Keep a reduced-precision copy of all vectors, used to speed up threshold searches
+     * (calculateScoresThreaded() with a threshold, and findAllAbove()).
+     * Scans read the smaller quantized vectors and only recompute exact scores for vectors whose approximate score
+     * is within a provable error bound of the threshold, so the vectors that meet the threshold, and their scores,
+     * are exactly the same as without quantization.
+     * The copy is discarded when terms are added or removed or vectors are normalized;
+     * call this again after any other modification of the vectors (such as through a view from get()).
+     * @param mode the encoding to use, or null to discard the quantized copy
+     */
+    public void quantize(QuantizedVectors.Mode mode) {
+        quantized = mode == null ? null : new QuantizedVectors(this, mode);
+    }
+
+    /**
+     * @return the encoding of the quantized copy of the vectors, or null if there is none
+     */
+    public QuantizedVectors.Mode getQuantization() {
+        return quantized == null ? null : quantized.getMode();
+    }
+
+    /**
+     * Discard the quantized copy of the vectors (if any) because they have changed
+     */
+    protected void dropQuantization() {
+        quantized = null;
     }
 
     /**
@@ -119,51 +327,97 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
         WordEmbedding we = get(phrase);
         return getTopNSimilar(we, n);
     }
-    // todo: call threaded!
+
+    /**
+     * Get the n stored phrases with the highest dot product with a vector
+     * @return phrases and scores, best first
+     */
     public Map<Phrase, Double> getTopNSimilar(WordEmbedding we, int n) {
-//        int phraseIndex = dictionary.get(phrase);
-        List<Phrase> mostSimilarPhrases = new ArrayList<>();
-        List<Double> mostSimilarScores = new ArrayList<>();
         Map<Phrase, Double> mostSimilar = new LinkedHashMap<>();
-        double[] scores = new double[vectors.size()];
-        for (int j = 0; j < scores.length; j++) {
-            scores[j] = we.dot(vectors.get(j));
-        }
-//        scores[phraseIndex] = 0;
-        mostSimilarPhrases.add(terms.get(0));
-        mostSimilarScores.add(scores[0]);
-        for (int i = 0; i < scores.length; i++) {
-            for (int j = 0; j < n; j++) {
-                if (j >= mostSimilarPhrases.size()) {
-                    mostSimilarScores.add(scores[i]);
-                    mostSimilarPhrases.add(terms.get(i));
-                    break;
-                }
-                if (scores[i] > mostSimilarScores.get(j)) {
-                    mostSimilarScores.add(j, scores[i]);
-                    mostSimilarPhrases.add(j, terms.get(i));
-                    break;
-                }
-            }
-        }
-        for (int i = 0; i < n; i++) {
-            mostSimilar.put(mostSimilarPhrases.get(i), mostSimilarScores.get(i));
+        Neighbors best = topK(we, n, -1);
+        for(int i=0; i<best.size(); i++) {
+            mostSimilar.put(terms.get(best.index(i)), best.score(i));
         }
         return mostSimilar;
     }
 
-    // todo: call threaded!
     public Phrase mostSimilarTo(WordEmbedding embedding) {
-        double best = -Double.MAX_VALUE;
-        Phrase bestPhrase = new Phrase("");
-        for(int j=0; j<vectors.size(); j++) {
-            double score = embedding.dot(vectors.get(j));
-            if(score > best) {
-                bestPhrase = terms.get(j);
-                best = score;
+        Neighbors best = topK(embedding, 1, -1);
+        return best.size() == 0 ? new Phrase("") : terms.get(best.index(0));
+    }
+
+    /**
+     * Find the stored vectors with the highest dot product with a query, in parallel.
+     * Each thread keeps a bounded heap of the best k over its share of the matrix; the heaps are merged at the end.
+     * Ties are broken in favor of lower indices.
+     * @param query a vector of this object's dimensionality
+     * @param k how many to find
+     * @param exclude an index to leave out (such as the query's own), or -1
+     * @return up to k indices and scores, best first
+     */
+    public Neighbors topK(WordEmbedding query, int k, int exclude) {
+        if(k <= 0) return new Neighbors();
+        List<TopKThread> finished = Collections.synchronizedList(new ArrayList<TopKThread>());
+        Threading.chunkAndThread(size(), TopKThread.class, this, query, k, exclude, finished);
+        ScoreHeap merged = new ScoreHeap(k + 1);
+        for(TopKThread thread : finished) {
+            ScoreHeap heap = thread.best;
+            for(int i=0; i<heap.size(); i++) {
+                merged.push(heap.node(i), heap.score(i));
+                if(merged.size() > k) merged.pop();
+            }
+        }
+        return merged.drainBestFirst();
+    }
+
+    /**
+     * Find the stored vectors most similar to the one at a given index, leaving out that index itself
+     */
+    public Neighbors topK(Phrase phrase, int k) {
+        int index = terms.indexOf(phrase);
+        if(index < 0) return new Neighbors();
+        return topK(vector(index), k, index);
+    }
+
+    // rows scored at a time by each top-k thread
+    private static final int TOP_K_BATCH = 1024;
+
+    public static class TopKThread extends Threading.IntRangeThread {
+        private Embeddings embeddings;
+        private WordEmbedding query;
+        private int k;
+        private int exclude;
+        private List<TopKThread> finished;
+        private ScoreHeap best;
+
+        @Override
+        public void initializeParams(Object[] args) {
+            embeddings = (Embeddings) args[0];
+            query = (WordEmbedding) args[1];
+            k = (int) args[2];
+            exclude = (int) args[3];
+            finished = (List<TopKThread>) args[4];
+        }
+        @Override
+        public void run() {
+            best = new ScoreHeap(k + 1);
+            double[] scores = new double[TOP_K_BATCH];
+            for(int batchBegin = begin; batchBegin < end; batchBegin += TOP_K_BATCH) {
+                int batchEnd = Math.min(end, batchBegin + TOP_K_BATCH);
+                embeddings.dotRange(query, batchBegin, batchEnd, scores, 0);
+                for(int i=0; i<batchEnd-batchBegin; i++) {
+                    int row = batchBegin + i;
+                    if(row == exclude) continue;
+                    if(best.size() < k) {
+                        best.push(row, scores[i]);
+                    } else if(!best.worseThanTop(row, scores[i])) {
+                        best.push(row, scores[i]);
+                        best.pop();
+                    }
+                }
             }
+            finished.add(this);
         }
-        return bestPhrase;
     }
 
     /**
@@ -175,17 +429,18 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
     public WordEmbedding getSumVector(Collection<Phrase> sums, Collection<Phrase> differences) {
         WordEmbedding ans = new WordEmbedding(dimensionality);
         for(Phrase addword : sums) {
-            if(dictionary.containsKey(addword)) {
-                int wordInt = dictionary.get(addword);
-                ans.add(vectors.get(dictionary.get(addword)));
+            int index = terms.indexOf(addword);
+            if(index >= 0) {
+                ans.add(vector(index));
             }
             else
                 System.out.println("WARNING: word " + addword + " not in dictionary; ignoring");
         }
         if(differences != null) {
             for (Phrase subword : differences) {
-                if(dictionary.containsKey(subword)) {
-                    ans.subtract(vectors.get(dictionary.get(subword)));
+                int index = terms.indexOf(subword);
+                if(index >= 0) {
+                    ans.subtract(vector(index));
                 }
                 else
                     System.out.println("WARNING: word " + subword + " not in dictionary; ignoring");
@@ -195,15 +450,17 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
     }
 
     public void normalizeAll() {
-        for(WordEmbedding embedding : vectors)
-            embedding.normalize();
+        for(int i=0; i<size(); i++) {
+            vector(i).normalize();
+        }
+        dropQuantization();
     }
 
     public boolean contains(Phrase phrase) {
-        return dictionary.containsKey(phrase);
+        return terms.indexOf(phrase) >= 0;
     }
     public boolean contains(String phrase) {
-        return dictionary.containsKey(new Phrase(phrase));
+        return terms.indexOf(new Phrase(phrase)) >= 0;
     }
 
     /**
@@ -222,9 +479,13 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
         return terms.size();
     }
 
+    /**
+     * Iterates over terms in index order. Does not support removal; use filterOn() instead
+     * @return an unmodifiable iterator
+     */
     @Override
     public Iterator<Phrase> iterator() {
-        return terms.iterator();
+        return terms.asList().iterator();
     }
 
     /**
@@ -233,33 +494,199 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
      * @return a double array containing each embedding's dot product with every embedding
      */
     public double[] calculateScoresThreaded(WordEmbedding thisEmb) {
-        int n = vectors.size();
+        return calculateScoresThreaded(thisEmb, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Fast parallelized calculation of dot products for a whole vocabulary, when only scores meeting a threshold matter.
+     * If this object is quantized, scores below the threshold are approximate (see quantize()).
+     * @param thisEmb a word embedding of the same dimensionality as this object
+     * @param threshold scores at or above this value are exact
+     * @return a double array containing each embedding's dot product with every embedding
+     */
+    public double[] calculateScoresThreaded(WordEmbedding thisEmb, double threshold) {
+        int n = size();
         double[] scores = new double[n];
-        Threading.chunkAndThread(n, DotThread.class, scores, thisEmb, vectors);
+        Threading.chunkAndThread(n, DotThread.class, scores, thisEmb, this, threshold);
         return scores;
     }
 
     public static class DotThread extends Threading.IntRangeThread {
         private double[] results;
         private WordEmbedding emb;
-        private List<WordEmbedding> vectors;
+        private Embeddings embeddings;
+        private double threshold;
 
         @Override
         public void initializeParams(Object[] args) {
             this.results = (double[]) args[0];
             this.emb = (WordEmbedding) args[1];
-            this.vectors = (List<WordEmbedding>) args[2];
+            this.embeddings = (Embeddings) args[2];
+            this.threshold = (double) args[3];
         }
         @Override
         public void run() {
-            for (int i = begin; i < end; i++) {
-                results[i] = vectors.get(i).dot(emb);
+            embeddings.dotRangeAbove(emb, begin, end, threshold, results, begin);
+        }
+    }
+
+    // rows of the matrix compared against a block of queries at a time (sized to stay in L2 cache alongside the queries)
+    static final int TILE_ROWS = 128;
+
+    /**
+     * Find all stored vectors whose dot product with each of a block of stored vectors meets a threshold.
+     * Equivalent to calling calculateScoresThreaded() once per query and thresholding, but makes one pass
+     * over the matrix for the whole block: each thread walks its share of the matrix in tiles of rows
+     * and compares every query in the block against a tile while it is still in cache.
+     * @param queries indices of the query vectors
+     * @param threshold minimum dot product to include a vector
+     * @return for each query, in the order given, the indices and scores of matches in ascending index order
+     */
+    public Neighbors[] findAllAbove(int[] queries, double threshold) {
+        return findAllAbove(queries, threshold, 0);
+    }
+
+    /**
+     * Same as findAllAbove(), but only considers stored vectors from a given index on
+     * @param queries indices of the query vectors
+     * @param threshold minimum dot product to include a vector
+     * @param beginRow index of the first stored vector to compare against
+     * @return for each query, in the order given, the indices and scores of matches in ascending index order
+     */
+    public Neighbors[] findAllAbove(int[] queries, double threshold, int beginRow) {
+        float[] block = queryBlock(queries);
+        List<TileThread> finished = Collections.synchronizedList(new ArrayList<TileThread>());
+        Threading.chunkAndThread(Math.max(0, size() - beginRow), TileThread.class, this, block, queries.length, threshold,
+                beginRow, finished);
+        List<TileThread> threads = new ArrayList<>(finished);
+        threads.sort((x, y) -> Integer.compare(x.getBegin(), y.getBegin()));
+        Neighbors[] matches = new Neighbors[queries.length];
+        for(int q=0; q<queries.length; q++) {
+            matches[q] = new Neighbors();
+            for(TileThread thread : threads) {
+                matches[q].addAll(thread.matches[q]);
             }
         }
+        return matches;
+    }
+
+    /**
+     * Same as findAllAbove(), but scans the whole matrix on the calling thread.
+     * For callers that already run many queries in parallel (such as from a thread pool).
+     * @param queries indices of the query vectors
+     * @param threshold minimum dot product to include a vector
+     * @return for each query, in the order given, the indices and scores of matches in ascending index order
+     */
+    public Neighbors[] findAllAboveUnthreaded(int[] queries, double threshold) {
+        return findAllAboveUnthreaded(queries, threshold, 0);
+    }
+
+    /**
+     * Same as findAllAbove(int[], double, int), but scans on the calling thread
+     */
+    public Neighbors[] findAllAboveUnthreaded(int[] queries, double threshold, int beginRow) {
+        return matchTiles(queryBlock(queries), queries.length, beginRow, size(), threshold);
+    }
+
+    /**
+     * Copy query vectors into one contiguous block so that they stay in cache together
+     */
+    private float[] queryBlock(int[] queries) {
+        float[] block = new float[queries.length * dimensionality];
+        for(int q=0; q<queries.length; q++) {
+            WordEmbedding query = vector(queries[q]);
+            System.arraycopy(query.data(), query.offset(), block, q * dimensionality, dimensionality);
+        }
+        return block;
     }
 
+    /**
+     * Compare a block of queries against a range of rows, one tile of rows at a time
+     */
+    private Neighbors[] matchTiles(float[] block, int nQueries, int begin, int end, double threshold) {
+        Neighbors[] matches = new Neighbors[nQueries];
+        WordEmbedding[] queries = new WordEmbedding[nQueries];
+        for(int q=0; q<nQueries; q++) {
+            matches[q] = new Neighbors();
+            queries[q] = new WordEmbedding(block, q * dimensionality, dimensionality);
+        }
+        // scores of query q against the row i into the tile at q * TILE_ROWS + i
+        double[] scores = new double[TILE_ROWS * nQueries];
+        for(int tileBegin = begin; tileBegin < end; tileBegin += TILE_ROWS) {
+            int tileEnd = Math.min(end, tileBegin + TILE_ROWS);
+            if(quantized == null) {
+                dotTile(block, nQueries, tileBegin, tileEnd, scores);
+            } else {
+                for(int q=0; q<nQueries; q++) {
+                    dotRangeAbove(queries[q], tileBegin, tileEnd, threshold, scores, q * TILE_ROWS);
+                }
+            }
+            for(int q=0; q<nQueries; q++) {
+                for(int i=0; i<tileEnd-tileBegin; i++) {
+                    double score = scores[q * TILE_ROWS + i];
+                    if(score >= threshold) {
+                        matches[q].add(tileBegin + i, score);
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Dot products of a block of queries with the rows of a tile, exactly as dotRange() computes them,
+     * register-blocked: each row is loaded once for several queries at a time (see VectorKernels.dots())
+     * @param scores receives the product of query q and row begin + i at q * TILE_ROWS + i
+     */
+    protected void dotTile(float[] block, int nQueries, int begin, int end, double[] scores) {
+        VectorKernels kernels = VectorKernels.INSTANCE;
+        for(int row=begin; row<end; row++) {
+            kernels.dots(chunk(row), rowOffset(row), block, 0, nQueries, dimensionality, scores, row - begin, TILE_ROWS);
+        }
+    }
+
+    public static class TileThread extends Threading.IntRangeThread {
+        private Embeddings embeddings;
+        private float[] block;
+        private int nQueries;
+        private double threshold;
+        private int beginRow;
+        private List<TileThread> finished;
+        private Neighbors[] matches;
+
+        @Override
+        public void initializeParams(Object[] args) {
+            embeddings = (Embeddings) args[0];
+            block = (float[]) args[1];
+            nQueries = (int) args[2];
+            threshold = (double) args[3];
+            beginRow = (int) args[4];
+            finished = (List<TileThread>) args[5];
+        }
+        @Override
+        public void run() {
+            matches = embeddings.matchTiles(block, nQueries, beginRow + begin, beginRow + end, threshold);
+            finished.add(this);
+        }
+    }
+
+    /**
+     * Iterates over views of the stored vectors, in index order
+     * @return an iterator of WordEmbedding views
+     */
     public Iterator<WordEmbedding> embeddingIterator() {
-        return vectors.iterator();
+        return new Iterator<WordEmbedding>() {
+            private int row = 0;
+            @Override
+            public boolean hasNext() {
+                return row < size();
+            }
+            @Override
+            public WordEmbedding next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                return vector(row++);
+            }
+        };
     }
 
     /**
@@ -267,28 +694,25 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
      * @return
      */
     public List<Phrase> getLexicon() {
-        return new ArrayList<>(terms);
+        return new ArrayList<>(terms.asList());
     }
 
 
     /**
      * Override the default read/write object
+     * Embeddings are written in the binary format of EmbeddingsFile rather than as serialized collections
      * @param stream
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
-        stream.writeObject(dictionary);
-        stream.writeObject(terms);
-        stream.writeObject(vectors);
-        stream.writeObject(frequency);
-        stream.writeObject(dimensionality);
+        EmbeddingsFile.write(this, Channels.newChannel(stream));
     }
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
-        dictionary = (Map<Phrase, Integer>) stream.readObject();
-        terms = (List<Phrase>) stream.readObject();
-        vectors = (List<WordEmbedding>) stream.readObject();
-        frequency = (List<Integer>) stream.readObject();
-        dimensionality = (int) stream.readObject();
+        Embeddings read = EmbeddingsFile.read(Channels.newChannel(stream));
+        terms = read.terms;
+        chunks = read.chunks;
+        frequency = read.frequency;
+        dimensionality = read.dimensionality;
     }
 
 
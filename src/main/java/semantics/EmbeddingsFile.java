@@ -0,0 +1,266 @@
+package semantics;
+
+import phrases.Phrase;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes Embeddings in a compact binary format, much faster to load than word2vec files or Java serialization.
+ * Saving a vocabulary after it has been filtered and normalized avoids redoing that work on every run.
+ *
+ * All numbers are little-endian. The layout is:
+ *   header: magic "CAPE" (int32), format version (int32), dimensionality (int32), number of terms (int32),
+ *           byte offset of the matrix (int64), reserved (int64)
+ *   terms: for each term in index order, its length in bytes (int32) followed by its UTF-8 bytes
+ *   frequencies: one int32 per term (-1 where none was set)
+ *   zero padding up to a multiple of 64 bytes
+ *   matrix: one row of dimensionality float32 values per term, in index order
+ *
+ * Because the matrix is aligned and stored as raw floats, a file can be opened without copying the vectors with map().
+ */
+public class EmbeddingsFile {
+
+    private static final Logger LOGGER = Logger.getLogger(EmbeddingsFile.class.getName());
+
+    // suggested extension for files in this format
+    public static final String SUFFIX = ".emb";
+
+    private static final int MAGIC = 0x45504143;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int ALIGNMENT = 64;
+    // size of the buffer used to stream the matrix
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Write embeddings to a file, replacing it if it exists
+     * @param embeddings the embeddings to write
+     * @param file destination
+     * @throws IOException
+     */
+    public static void write(Embeddings embeddings, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(embeddings, channel);
+        }
+        LOGGER.info("Wrote " + embeddings.size() + " embeddings to " + file);
+    }
+
+    /**
+     * Write embeddings to a channel. The matrix is aligned relative to the first byte written
+     * @param embeddings the embeddings to write
+     * @param channel destination, positioned where the data should start
+     * @throws IOException
+     */
+    public static void write(Embeddings embeddings, WritableByteChannel channel) throws IOException {
+        int n = embeddings.size();
+        int dim = embeddings.dimensionality();
+        List<byte[]> encoded = new ArrayList<>(n);
+        long metadataBytes = HEADER_BYTES + 4L * n;
+        for(Phrase phrase : embeddings) {
+            byte[] bytes = phrase.toString().getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            metadataBytes += 4 + bytes.length;
+        }
+        long matrixOffset = align(metadataBytes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(dim);
+        buffer.putInt(n);
+        buffer.putLong(matrixOffset);
+        buffer.putLong(0);
+        for(byte[] bytes : encoded) {
+            buffer = ensureRemaining(buffer, 4 + bytes.length, channel);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        for(Phrase phrase : embeddings) {
+            buffer = ensureRemaining(buffer, 4, channel);
+            buffer.putInt(embeddings.getFrequency(phrase));
+        }
+        buffer = ensureRemaining(buffer, (int) (matrixOffset - metadataBytes), channel);
+        for(long i=metadataBytes; i<matrixOffset; i++) {
+            buffer.put((byte) 0);
+        }
+
+        Iterator<WordEmbedding> vectors = embeddings.embeddingIterator();
+        while(vectors.hasNext()) {
+            WordEmbedding vector = vectors.next();
+            buffer = ensureRemaining(buffer, 4 * dim, channel);
+            buffer.asFloatBuffer().put(vector.data(), vector.offset(), dim);
+            buffer.position(buffer.position() + 4 * dim);
+        }
+        buffer.flip();
+        writeFully(buffer, channel);
+    }
+
+    /**
+     * Read a file into heap-backed Embeddings
+     * @param file a file written by write()
+     * @return the embeddings, with their frequencies
+     * @throws IOException if the file cannot be read or is not in this format
+     */
+    public static Embeddings read(Path file) throws IOException {
+        Embeddings embeddings;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            embeddings = read(channel);
+        }
+        LOGGER.info("Read " + embeddings.size() + " embeddings from " + file);
+        return embeddings;
+    }
+
+    /**
+     * Read embeddings from a channel, consuming exactly the bytes that write() produced
+     * @param channel source, positioned at the start of the data
+     * @return the embeddings, with their frequencies
+     * @throws IOException if the data cannot be read or is not in this format
+     */
+    public static Embeddings read(ReadableByteChannel channel) throws IOException {
+        Metadata metadata = Metadata.read(channel);
+        int dim = metadata.dimensionality;
+        Embeddings embeddings = new Embeddings(dim);
+        int rowsPerBlock = Math.max(1, BUFFER_BYTES / (4 * dim));
+        ByteBuffer buffer = ByteBuffer.allocate(rowsPerBlock * 4 * dim).order(ByteOrder.LITTLE_ENDIAN);
+        // rows are read into one reusable vector, which addWordAndEmbedding() copies
+        WordEmbedding row = new WordEmbedding(dim);
+        int n = metadata.terms.size();
+        for(int begin=0; begin<n; begin+=rowsPerBlock) {
+            int rows = Math.min(rowsPerBlock, n - begin);
+            buffer.clear();
+            buffer.limit(rows * 4 * dim);
+            readFully(buffer, channel);
+            buffer.flip();
+            FloatBuffer floats = buffer.asFloatBuffer();
+            for(int r=0; r<rows; r++) {
+                floats.get(row.data(), row.offset(), dim);
+                Phrase phrase = metadata.terms.get(begin + r);
+                embeddings.addWordAndEmbedding(phrase, row);
+                embeddings.setWordFrequency(phrase, metadata.frequencies[begin + r]);
+            }
+        }
+        return embeddings;
+    }
+
+    /**
+     * Open a file as memory-mapped embeddings, reading only the terms and frequencies onto the heap
+     * @param file a file written by write()
+     * @return embeddings backed by the file
+     * @throws IOException if the file cannot be mapped or is not in this format
+     */
+    public static MappedEmbeddings map(Path file) throws IOException {
+        Metadata metadata;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            metadata = Metadata.read(channel);
+        }
+        int n = metadata.terms.size();
+        long rowBytes = 4L * metadata.dimensionality;
+        long[] offsets = new long[n];
+        for(int i=0; i<n; i++) {
+            offsets[i] = metadata.matrixOffset + i * rowBytes;
+        }
+        MappedEmbeddings embeddings = new MappedEmbeddings(file, metadata.dimensionality, metadata.terms, offsets);
+        for(int i=0; i<n; i++) {
+            embeddings.setWordFrequency(metadata.terms.get(i), metadata.frequencies[i]);
+        }
+        return embeddings;
+    }
+
+    /**
+     * Everything before the matrix
+     */
+    private static class Metadata {
+        private int dimensionality;
+        private long matrixOffset;
+        private List<Phrase> terms;
+        private int[] frequencies;
+
+        /**
+         * Read the header, terms, and frequencies, leaving the channel positioned at the start of the matrix
+         */
+        private static Metadata read(ReadableByteChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, channel);
+            header.flip();
+            if(header.getInt() != MAGIC) {
+                throw new IOException("Not an embeddings file (bad magic number)");
+            }
+            int version = header.getInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported embeddings file version " + version + "; expected " + VERSION);
+            }
+            Metadata metadata = new Metadata();
+            metadata.dimensionality = header.getInt();
+            int n = header.getInt();
+            metadata.matrixOffset = header.getLong();
+            if(metadata.dimensionality <= 0 || n < 0 || metadata.matrixOffset < HEADER_BYTES + 8L * n
+                    || metadata.matrixOffset - HEADER_BYTES > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt embeddings file header");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) (metadata.matrixOffset - HEADER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(buffer, channel);
+            buffer.flip();
+            metadata.terms = new ArrayList<>(n);
+            try {
+                for(int i=0; i<n; i++) {
+                    int length = buffer.getInt();
+                    metadata.terms.add(new Phrase(new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8)));
+                    buffer.position(buffer.position() + length);
+                }
+                metadata.frequencies = new int[n];
+                buffer.asIntBuffer().get(metadata.frequencies);
+            } catch(RuntimeException e) {
+                throw new IOException("Corrupt embeddings file term table", e);
+            }
+            return metadata;
+        }
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Flush the buffer if it doesn't have room for some number of bytes (growing it if even an empty buffer doesn't)
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes, WritableByteChannel channel) throws IOException {
+        if(buffer.remaining() >= bytes) return buffer;
+        buffer.flip();
+        writeFully(buffer, channel);
+        if(buffer.capacity() < bytes) {
+            return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of embeddings file");
+            }
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package semantics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical navigable small world graph (Malkov & Yashunin) over the vectors of an Embeddings object,
+ * for approximate nearest-neighbor search by dot product (cosine similarity, if the embeddings are normalized).
+ *
+ * Each vector is a node, linked to up to m near neighbors on each level it appears in (2m on the bottom level);
+ * levels are assigned randomly, with exponentially fewer nodes on each higher level.
+ * A query descends greedily through the upper levels, then does a best-first search of the bottom level
+ * keeping the efSearch best nodes found so far. Larger efSearch means higher recall and slower queries.
+ *
+ * Threshold queries then walk outward from every node found that is close to the threshold, following links
+ * through nodes scoring at least (threshold - rangeMargin); a larger margin finds more of the matches.
+ *
+ * The graph is built single-threaded with seeded randomness, so the same embeddings always give the same index.
+ * Queries are thread-safe. The index must be rebuilt if the embeddings change (see HnswIndexBuilder.loadOrBuild()).
+ */
+public class HnswIndex implements NeighborIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(HnswIndex.class.getName());
+
+    // suffix for an index saved next to an embeddings file
+    public static final String FILE_SUFFIX = ".hnsw";
+    private static final int FILE_VERSION = 1;
+
+    private static final int DEFAULT_EF_SEARCH = 100;
+    private static final double DEFAULT_RANGE_MARGIN = .05;
+
+    private final Embeddings embeddings;
+    private final int m;
+    private final int efConstruction;
+    private int efSearch;
+    private double rangeMargin;
+
+    // links[node][level] holds the number of neighbors followed by their indices
+    private final int[][][] links;
+    private int entryPoint;
+    private int topLevel;
+
+    private final ThreadLocal<Visited> visited;
+
+    public static class HnswIndexBuilder {
+        private int m = 16;
+        private int efConstruction = 200;
+        private int efSearch = DEFAULT_EF_SEARCH;
+        private double rangeMargin = DEFAULT_RANGE_MARGIN;
+        private long seed = 1;
+
+        public HnswIndexBuilder setM(int m) {
+            this.m = Math.max(2, m);
+            return this;
+        }
+        /**
+         * Size of the search beam when inserting nodes (larger: slower build, better graph)
+         */
+        public HnswIndexBuilder setEfConstruction(int efConstruction) {
+            this.efConstruction = Math.max(1, efConstruction);
+            return this;
+        }
+        /**
+         * Size of the search beam when querying (larger: slower queries, higher recall)
+         */
+        public HnswIndexBuilder setEfSearch(int efSearch) {
+            this.efSearch = Math.max(1, efSearch);
+            return this;
+        }
+        /**
+         * How far below the threshold to keep exploring in threshold queries (larger: slower queries, higher recall)
+         */
+        public HnswIndexBuilder setRangeMargin(double rangeMargin) {
+            this.rangeMargin = Math.max(0, rangeMargin);
+            return this;
+        }
+        public HnswIndexBuilder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Build an index over all vectors of an Embeddings object
+         */
+        public HnswIndex build(Embeddings embeddings) {
+            HnswIndex index = new HnswIndex(embeddings, m, efConstruction, new int[embeddings.size()][][]);
+            index.setEfSearch(efSearch);
+            index.setRangeMargin(rangeMargin);
+            index.insertAll(new Random(seed));
+            return index;
+        }
+
+        /**
+         * Load a saved index if it was built from these embeddings with the same parameters;
+         * otherwise build one and try to save it for next time
+         * @param file where the index is (or will be) saved
+         * @param embeddings the embeddings to index
+         */
+        public HnswIndex loadOrBuild(Path file, Embeddings embeddings) {
+            if(Files.exists(file)) {
+                try {
+                    HnswIndex index = load(file, embeddings);
+                    if(index != null && index.m == m && index.efConstruction == efConstruction) {
+                        index.setEfSearch(efSearch);
+                        index.setRangeMargin(rangeMargin);
+                        return index;
+                    }
+                    LOGGER.info("Index " + file + " does not match these embeddings and parameters; rebuilding");
+                } catch(IOException e) {
+                    LOGGER.warning("Couldn't read index " + file + "; rebuilding: " + e);
+                }
+            }
+            HnswIndex index = build(embeddings);
+            try {
+                index.save(file);
+            } catch(IOException e) {
+                LOGGER.warning("Couldn't save index " + file + "; it will be rebuilt next time");
+            }
+            return index;
+        }
+    }
+
+    private HnswIndex(Embeddings embeddings, int m, int efConstruction, int[][][] links) {
+        this.embeddings = embeddings;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.links = links;
+        efSearch = DEFAULT_EF_SEARCH;
+        rangeMargin = DEFAULT_RANGE_MARGIN;
+        int n = links.length;
+        visited = ThreadLocal.withInitial(() -> new Visited(n));
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = Math.max(1, efSearch);
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setRangeMargin(double rangeMargin) {
+        this.rangeMargin = Math.max(0, rangeMargin);
+    }
+
+    public double getRangeMargin() {
+        return rangeMargin;
+    }
+
+    public int size() {
+        return links.length;
+    }
+
+    /**
+     * The search parameters, and the construction parameters the graph was built (or saved) with
+     */
+    @Override
+    public String describe() {
+        return getClass().getName() + "(m=" + m + ",efConstruction=" + efConstruction + ",efSearch=" + efSearch
+                + ",rangeMargin=" + rangeMargin + ")";
+    }
+
+    private int capacity(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private void insertAll(Random random) {
+        int n = links.length;
+        LOGGER.info("Building HNSW index over " + n + " vectors (m=" + m + ", efConstruction=" + efConstruction + ")");
+        double levelMultiplier = 1 / Math.log(m);
+        for(int node=0; node<n; node++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            links[node] = new int[level + 1][];
+            for(int l=0; l<=level; l++) {
+                links[node][l] = new int[capacity(l) + 1];
+            }
+            insert(node);
+            if((node + 1) % 100000 == 0) {
+                LOGGER.info((node + 1) + " vectors indexed");
+            }
+        }
+    }
+
+    private void insert(int node) {
+        int level = links[node].length - 1;
+        if(node == 0) {
+            entryPoint = node;
+            topLevel = level;
+            return;
+        }
+        WordEmbedding vector = embeddings.vector(node);
+        ScoreHeap entries = new ScoreHeap();
+        int nearest = descend(vector, level);
+        entries.push(nearest, embeddings.dot(vector, nearest));
+        for(int l=Math.min(level, topLevel); l>=0; l--) {
+            ScoreHeap found = searchLayer(vector, entries, efConstruction, l);
+            int[] neighbors = selectNeighbors(found.copy(), m);
+            int[] list = links[node][l];
+            System.arraycopy(neighbors, 0, list, 1, neighbors.length);
+            list[0] = neighbors.length;
+            for(int neighbor : neighbors) {
+                addLink(neighbor, node, l);
+            }
+            entries = found;
+        }
+        if(level > topLevel) {
+            topLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Link one node to another, pruning the first node's links if it already has as many as allowed
+     */
+    private void addLink(int from, int to, int level) {
+        int[] list = links[from][level];
+        int count = list[0];
+        if(count < list.length - 1) {
+            list[count + 1] = to;
+            list[0] = count + 1;
+            return;
+        }
+        WordEmbedding vector = embeddings.vector(from);
+        ScoreHeap candidates = new ScoreHeap();
+        for(int j=1; j<=count; j++) {
+            candidates.push(list[j], embeddings.dot(vector, list[j]));
+        }
+        candidates.push(to, embeddings.dot(vector, to));
+        int[] kept = selectNeighbors(candidates, count);
+        System.arraycopy(kept, 0, list, 1, kept.length);
+        list[0] = kept.length;
+    }
+
+    /**
+     * Choose up to max neighbors from candidates, skipping any candidate that is closer to an already chosen neighbor
+     * than to the base node (the HNSW heuristic, which keeps links pointing in diverse directions)
+     * @param candidates candidate nodes scored against the base node (emptied by this method)
+     */
+    private int[] selectNeighbors(ScoreHeap candidates, int max) {
+        int n = candidates.size();
+        int[] nodes = new int[n];
+        double[] scores = new double[n];
+        // the heap pops worst first
+        for(int i=n-1; i>=0; i--) {
+            nodes[i] = candidates.topNode();
+            scores[i] = candidates.topScore();
+            candidates.pop();
+        }
+        int[] chosen = new int[Math.min(n, max)];
+        int nChosen = 0;
+        for(int i=0; i<n && nChosen<chosen.length; i++) {
+            WordEmbedding vector = embeddings.vector(nodes[i]);
+            boolean diverse = true;
+            for(int j=0; j<nChosen; j++) {
+                if(embeddings.dot(vector, chosen[j]) > scores[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if(diverse) {
+                chosen[nChosen++] = nodes[i];
+            }
+        }
+        return Arrays.copyOf(chosen, nChosen);
+    }
+
+    /**
+     * Greedily move from the entry point toward a query through the upper levels
+     * @return the closest node found on the level above toLevel (or the entry point)
+     */
+    private int descend(WordEmbedding query, int toLevel) {
+        int node = entryPoint;
+        double best = embeddings.dot(query, node);
+        for(int level=topLevel; level>toLevel; level--) {
+            boolean moved = true;
+            while(moved) {
+                moved = false;
+                int[] list = links[node][level];
+                for(int j=1; j<=list[0]; j++) {
+                    double score = embeddings.dot(query, list[j]);
+                    if(score > best) {
+                        best = score;
+                        node = list[j];
+                        moved = true;
+                    }
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Best-first search of one level
+     * @param entries starting nodes and their scores
+     * @param ef number of best nodes to keep
+     * @return the (up to) ef best nodes found
+     */
+    private ScoreHeap searchLayer(WordEmbedding query, ScoreHeap entries, int ef, int level) {
+        Visited seen = visited.get();
+        seen.clear();
+        // candidates to expand, best on top (scores negated); results found so far, worst on top
+        ScoreHeap candidates = new ScoreHeap();
+        ScoreHeap results = new ScoreHeap();
+        for(int i=0; i<entries.size(); i++) {
+            int node = entries.node(i);
+            seen.visit(node);
+            candidates.push(node, -entries.score(i));
+            results.push(node, entries.score(i));
+            if(results.size() > ef) results.pop();
+        }
+        while(candidates.size() > 0) {
+            int node = candidates.topNode();
+            double score = -candidates.topScore();
+            candidates.pop();
+            if(results.size() >= ef && score < results.topScore()) break;
+            int[] list = links[node][level];
+            for(int j=1; j<=list[0]; j++) {
+                int neighbor = list[j];
+                if(!seen.visit(neighbor)) continue;
+                double neighborScore = embeddings.dot(query, neighbor);
+                if(results.size() < ef || neighborScore > results.topScore()) {
+                    candidates.push(neighbor, -neighborScore);
+                    results.push(neighbor, neighborScore);
+                    if(results.size() > ef) results.pop();
+                }
+            }
+        }
+        return results;
+    }
+
+    private ScoreHeap searchBottom(WordEmbedding query, int ef) {
+        ScoreHeap entries = new ScoreHeap();
+        int nearest = descend(query, 0);
+        entries.push(nearest, embeddings.dot(query, nearest));
+        return searchLayer(query, entries, ef, 0);
+    }
+
+    @Override
+    public Neighbors topK(WordEmbedding query, int k) {
+        if(size() == 0 || k <= 0) return new Neighbors();
+        ScoreHeap found = searchBottom(query, Math.max(efSearch, k));
+        while(found.size() > k) found.pop();
+        return found.drainBestFirst();
+    }
+
+    @Override
+    public Neighbors findAllAbove(WordEmbedding query, double threshold) {
+        Neighbors matches = new Neighbors();
+        if(size() == 0) return matches;
+        ScoreHeap found = searchBottom(query, efSearch);
+        double explore = threshold - rangeMargin;
+        Visited seen = visited.get();
+        seen.clear();
+        int[] queue = new int[16];
+        int queueEnd = 0;
+        for(int i=0; i<found.size(); i++) {
+            if(found.score(i) >= explore) {
+                int node = found.node(i);
+                seen.visit(node);
+                if(queueEnd == queue.length) queue = Arrays.copyOf(queue, queueEnd * 2);
+                queue[queueEnd++] = node;
+                if(found.score(i) >= threshold) {
+                    matches.add(node, found.score(i));
+                }
+            }
+        }
+        for(int head=0; head<queueEnd; head++) {
+            int[] list = links[queue[head]][0];
+            for(int j=1; j<=list[0]; j++) {
+                int neighbor = list[j];
+                if(!seen.visit(neighbor)) continue;
+                double score = embeddings.dot(query, neighbor);
+                if(score >= explore) {
+                    if(queueEnd == queue.length) queue = Arrays.copyOf(queue, queueEnd * 2);
+                    queue[queueEnd++] = neighbor;
+                    if(score >= threshold) {
+                        matches.add(neighbor, score);
+                    }
+                }
+            }
+        }
+        matches.sortByIndex();
+        return matches;
+    }
+
+    /**
+     * Save the graph (not the vectors), along with a fingerprint of the embeddings it was built from
+     */
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(FILE_VERSION);
+            out.writeLong(embeddings.fingerprint());
+            out.writeInt(links.length);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(entryPoint);
+            out.writeInt(topLevel);
+            for(int[][] nodeLinks : links) {
+                out.writeByte(nodeLinks.length);
+                for(int[] list : nodeLinks) {
+                    out.writeShort(list[0]);
+                    for(int j=1; j<=list[0]; j++) {
+                        out.writeInt(list[j]);
+                    }
+                }
+            }
+        }
+        LOGGER.info("Saved HNSW index to " + file);
+    }
+
+    /**
+     * Load a saved graph
+     * @param file a file written by save()
+     * @param embeddings the embeddings the index was built from
+     * @return the index, or null if it was built from different embeddings
+     */
+    public static HnswIndex load(Path file, Embeddings embeddings) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if(in.readInt() != FILE_VERSION
+                    || in.readLong() != embeddings.fingerprint()
+                    || in.readInt() != embeddings.size()) {
+                return null;
+            }
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int entryPoint = in.readInt();
+            int topLevel = in.readInt();
+            int[][][] links = new int[embeddings.size()][][];
+            HnswIndex index = new HnswIndex(embeddings, m, efConstruction, links);
+            for(int node=0; node<links.length; node++) {
+                links[node] = new int[in.readUnsignedByte()][];
+                for(int l=0; l<links[node].length; l++) {
+                    int[] list = new int[index.capacity(l) + 1];
+                    list[0] = in.readUnsignedShort();
+                    for(int j=1; j<=list[0]; j++) {
+                        list[j] = in.readInt();
+                    }
+                    links[node][l] = list;
+                }
+            }
+            index.entryPoint = entryPoint;
+            index.topLevel = topLevel;
+            LOGGER.info("Loaded HNSW index from " + file);
+            return index;
+        }
+    }
+
+    /**
+     * Set of visited nodes that can be cleared in constant time (by changing the mark that counts as visited)
+     */
+    private static class Visited {
+        private final int[] marks;
+        private int mark;
+
+        Visited(int n) {
+            marks = new int[n];
+        }
+
+        void clear() {
+            mark++;
+            if(mark == 0) {
+                Arrays.fill(marks, 0);
+                mark = 1;
+            }
+        }
+
+        /**
+         * @return true if the node had not been visited since the last clear
+         */
+        boolean visit(int node) {
+            if(marks[node] == mark) return false;
+            marks[node] = mark;
+            return true;
+        }
+    }
+}
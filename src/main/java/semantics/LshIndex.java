@@ -0,0 +1,339 @@
+package semantics;
+
+import util.Threading;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Locality-sensitive hashing index over the vectors of an Embeddings object, using random hyperplanes
+ * (sign random projections, Charikar 2002). A lighter alternative to HnswIndex for threshold queries.
+ *
+ * Each of several tables hashes a vector to a signature of up to 64 bits, one per random hyperplane
+ * (set if the vector is on the positive side). Two vectors at angle theta agree on each bit with probability
+ * 1 - theta/pi, so similar vectors tend to share signatures. A query looks up every signature within a
+ * Hamming distance (the probe radius) of its own in every table, then computes exact dot products for just
+ * those candidates. More tables or a larger radius raise recall; more bits make buckets smaller and queries faster.
+ * expectedRecall() gives the theoretical recall for a similarity, and measureRecall() the actual recall.
+ *
+ * Hashing separates high similarities far better than low ones: at a threshold of .3, high recall still means
+ * scoring a large fraction of unrelated vectors, while at .5 and above a few percent usually suffice.
+ *
+ * Each table is a list of node indices sorted by signature, searched by binary search
+ * (12 bytes per vector per table).
+ */
+public class LshIndex implements NeighborIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(LshIndex.class.getName());
+
+    private final Embeddings embeddings;
+    private final int bits;
+    private final int tables;
+    private final int probeRadius;
+    private final long seed;
+    // hyperplane normals, (tables * bits) rows of dimensionality floats
+    private final float[] planes;
+    // for each table, signatures in ascending order and the node each belongs to
+    private final long[][] sortedSignatures;
+    private final int[][] sortedNodes;
+    // every bit pattern with at most probeRadius bits set, XORed with a signature to probe nearby buckets
+    private final long[] probeMasks;
+
+    public static class LshIndexBuilder {
+        // about 93% expected recall at cosine .3 (the default semantic threshold)
+        private int bits = 12;
+        private int tables = 32;
+        private int probeRadius = 2;
+        private long seed = 1;
+
+        /**
+         * Bits per signature (at most 64)
+         */
+        public LshIndexBuilder setBits(int bits) {
+            this.bits = Math.max(1, Math.min(64, bits));
+            return this;
+        }
+        public LshIndexBuilder setTables(int tables) {
+            this.tables = Math.max(1, tables);
+            return this;
+        }
+        /**
+         * Maximum Hamming distance between a query's signature and the signatures of buckets probed
+         */
+        public LshIndexBuilder setProbeRadius(int probeRadius) {
+            this.probeRadius = Math.max(0, probeRadius);
+            return this;
+        }
+        public LshIndexBuilder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+        public LshIndex build(Embeddings embeddings) {
+            return new LshIndex(embeddings, bits, tables, probeRadius, seed);
+        }
+    }
+
+    private LshIndex(Embeddings embeddings, int bits, int tables, int probeRadius, long seed) {
+        this.embeddings = embeddings;
+        this.bits = bits;
+        this.tables = tables;
+        this.probeRadius = Math.min(probeRadius, bits);
+        this.seed = seed;
+        int dim = embeddings.dimensionality();
+        int n = embeddings.size();
+        LOGGER.info("Building LSH index over " + n + " vectors (" + tables + " tables of " + bits + " bits, probe radius "
+                + this.probeRadius + ")");
+
+        Random random = new Random(seed);
+        planes = new float[tables * bits * dim];
+        for(int i=0; i<planes.length; i++) {
+            planes[i] = (float) random.nextGaussian();
+        }
+
+        long[][] signatures = new long[tables][n];
+        Threading.chunkAndThread(n, SignatureThread.class, this, signatures);
+        sortedSignatures = new long[tables][];
+        sortedNodes = new int[tables][];
+        for(int t=0; t<tables; t++) {
+            sortTable(t, signatures[t]);
+        }
+        probeMasks = masksWithin(bits, this.probeRadius);
+    }
+
+    @Override
+    public String describe() {
+        return getClass().getName() + "(bits=" + bits + ",tables=" + tables + ",probeRadius=" + probeRadius + ",seed=" + seed + ")";
+    }
+
+    public static class SignatureThread extends Threading.IntRangeThread {
+        private LshIndex index;
+        private long[][] signatures;
+
+        @Override
+        public void initializeParams(Object[] args) {
+            index = (LshIndex) args[0];
+            signatures = (long[][]) args[1];
+        }
+        @Override
+        public void run() {
+            for(int node=begin; node<end; node++) {
+                WordEmbedding vector = index.embeddings.vector(node);
+                for(int t=0; t<index.tables; t++) {
+                    signatures[t][node] = index.signature(vector, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sort the nodes of one table by signature (sorting keys with a parallel array of nodes, to avoid boxing)
+     */
+    private void sortTable(int table, long[] signatures) {
+        int n = signatures.length;
+        long[] keys = signatures.clone();
+        int[] nodes = new int[n];
+        for(int i=0; i<n; i++) {
+            nodes[i] = i;
+        }
+        quicksort(keys, nodes, 0, n - 1);
+        sortedSignatures[table] = keys;
+        sortedNodes[table] = nodes;
+    }
+
+    private static void quicksort(long[] keys, int[] values, int lo, int hi) {
+        while(lo < hi) {
+            if(hi - lo < 16) {
+                // insertion sort for small ranges
+                for(int i=lo+1; i<=hi; i++) {
+                    long key = keys[i];
+                    int value = values[i];
+                    int j = i - 1;
+                    while(j >= lo && keys[j] > key) {
+                        keys[j + 1] = keys[j];
+                        values[j + 1] = values[j];
+                        j--;
+                    }
+                    keys[j + 1] = key;
+                    values[j + 1] = value;
+                }
+                return;
+            }
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while(i <= j) {
+                while(keys[i] < pivot) i++;
+                while(keys[j] > pivot) j--;
+                if(i <= j) {
+                    long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller side to bound stack depth
+            if(j - lo < hi - i) {
+                quicksort(keys, values, lo, j);
+                lo = i;
+            } else {
+                quicksort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static long[] masksWithin(int bits, int radius) {
+        long count = 0;
+        for(int r=0; r<=radius; r++) {
+            count += Math.round(binomial(bits, r));
+        }
+        long[] masks = new long[(int) count];
+        int[] filled = {0};
+        addMasks(masks, filled, 0L, 0, bits, radius);
+        return masks;
+    }
+
+    private static void addMasks(long[] masks, int[] filled, long mask, int fromBit, int bits, int remaining) {
+        masks[filled[0]++] = mask;
+        if(remaining == 0) return;
+        for(int b=fromBit; b<bits; b++) {
+            addMasks(masks, filled, mask | (1L << b), b + 1, bits, remaining - 1);
+        }
+    }
+
+    private static double binomial(int n, int k) {
+        double result = 1;
+        for(int i=0; i<k; i++) {
+            result = result * (n - i) / (i + 1);
+        }
+        return result;
+    }
+
+    private long signature(WordEmbedding vector, int table) {
+        int dim = embeddings.dimensionality();
+        long signature = 0;
+        for(int b=0; b<bits; b++) {
+            double projection = VectorKernels.INSTANCE.dot(planes, (table * bits + b) * dim, vector.data(), vector.offset(), dim);
+            if(projection > 0) {
+                signature |= 1L << b;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * @return indices of all vectors sharing a probed bucket with the query in any table, ascending and without duplicates
+     */
+    private int[] candidates(WordEmbedding query) {
+        int[] found = new int[64];
+        int nFound = 0;
+        for(int t=0; t<tables; t++) {
+            long signature = signature(query, t);
+            long[] keys = sortedSignatures[t];
+            int[] nodes = sortedNodes[t];
+            for(long mask : probeMasks) {
+                long probe = signature ^ mask;
+                int i = firstAtLeast(keys, probe);
+                for(; i<keys.length && keys[i] == probe; i++) {
+                    if(nFound == found.length) found = Arrays.copyOf(found, nFound * 2);
+                    found[nFound++] = nodes[i];
+                }
+            }
+        }
+        Arrays.sort(found, 0, nFound);
+        int unique = 0;
+        for(int i=0; i<nFound; i++) {
+            if(unique == 0 || found[i] != found[unique - 1]) {
+                found[unique++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, unique);
+    }
+
+    private static int firstAtLeast(long[] keys, long key) {
+        int lo = 0;
+        int hi = keys.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public Neighbors topK(WordEmbedding query, int k) {
+        ScoreHeap best = new ScoreHeap(k + 1);
+        for(int node : candidates(query)) {
+            best.push(node, embeddings.dot(query, node));
+            if(best.size() > k) best.pop();
+        }
+        return best.drainBestFirst();
+    }
+
+    @Override
+    public Neighbors findAllAbove(WordEmbedding query, double threshold) {
+        Neighbors matches = new Neighbors();
+        for(int node : candidates(query)) {
+            double score = embeddings.dot(query, node);
+            if(score >= threshold) {
+                matches.add(node, score);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Theoretical probability that a vector with a given cosine similarity to a query is found
+     * @param bits bits per signature
+     * @param tables number of tables
+     * @param probeRadius maximum Hamming distance probed
+     * @param cosine cosine similarity between query and vector
+     */
+    public static double expectedRecall(int bits, int tables, int probeRadius, double cosine) {
+        double agree = 1 - Math.acos(Math.max(-1, Math.min(1, cosine))) / Math.PI;
+        // probability that at most probeRadius of the bits differ, in one table
+        double perTable = 0;
+        for(int r=0; r<=Math.min(probeRadius, bits); r++) {
+            perTable += binomial(bits, r) * Math.pow(1 - agree, r) * Math.pow(agree, bits - r);
+        }
+        return 1 - Math.pow(1 - perTable, tables);
+    }
+
+    /**
+     * Measure recall of threshold queries against an exact scan, and log how many dot products the index saved
+     * @param queries indices of vectors to use as queries
+     * @param threshold the similarity threshold
+     * @return the fraction of all true matches (over all queries) that the index found
+     */
+    public double measureRecall(int[] queries, double threshold) {
+        Neighbors[] exact = embeddings.findAllAbove(queries, threshold);
+        long truePositives = 0;
+        long total = 0;
+        long candidates = 0;
+        for(int q=0; q<queries.length; q++) {
+            WordEmbedding query = embeddings.vector(queries[q]);
+            candidates += candidates(query).length;
+            int[] found = findAllAbove(query, threshold).indices();
+            for(int i=0; i<exact[q].size(); i++) {
+                total++;
+                if(Arrays.binarySearch(found, exact[q].index(i)) >= 0) {
+                    truePositives++;
+                }
+            }
+        }
+        double recall = total == 0 ? 1 : (double) truePositives / total;
+        LOGGER.info(String.format("LSH recall at threshold %s: %.4f (expected %.4f at the threshold); %.2f%% of vectors scored per query",
+                threshold, recall, expectedRecall(bits, tables, probeRadius, threshold),
+                100. * candidates / Math.max(1, queries.length) / Math.max(1, embeddings.size())));
+        return recall;
+    }
+}
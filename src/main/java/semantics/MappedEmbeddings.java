@@ -0,0 +1,190 @@
+package semantics;
+
+import phrases.Phrase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Embeddings whose vectors are read in place from a memory-mapped file rather than copied onto the heap.
+ * Only the terms (and a few bytes of bookkeeping per term) are held in memory, so opening is fast
+ * and several processes reading the same file share the operating system's page cache.
+ *
+ * Vectors must be stored as little-endian 32-bit floats; each row may start at any byte offset.
+ * The file is never written: normalizeAll() records a scale factor per row instead of changing the vectors,
+ * and get() returns a (scaled) copy of the stored vector rather than a view. Adding new terms is not supported.
+ */
+public class MappedEmbeddings extends Embeddings {
+
+    private static final Logger LOGGER = Logger.getLogger(MappedEmbeddings.class.getName());
+
+    // no single mapping can exceed 2 GB, so large files are mapped as several segments, each holding whole rows
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    private final Path file;
+    private final ByteBuffer[] segments;
+    // segment and byte position within that segment for each row
+    private int[] rowSegment;
+    private int[] rowPosition;
+    // multiplier applied to every dot product with a row (changed by normalizeAll)
+    private float[] rowScale;
+
+    /**
+     * Map vectors from a file.
+     * @param file a file containing little-endian float vectors
+     * @param dimensionality number of floats in each vector
+     * @param terms the term for each vector, in file order. Duplicates after the first occurrence are skipped
+     * @param offsets byte offset within the file of the first float of each term's vector
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedEmbeddings(Path file, int dimensionality, List<Phrase> terms, long[] offsets) throws IOException {
+        super(dimensionality);
+        this.file = file;
+        long rowBytes = 4L * dimensionality;
+        int n = terms.size();
+        rowSegment = new int[n];
+        rowPosition = new int[n];
+        rowScale = new float[n];
+        Arrays.fill(rowScale, 1f);
+
+        List<ByteBuffer> segmentList = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long segmentStart = -1;
+            long segmentEnd = -1;
+            int row = 0;
+            for(int i=0; i<n; i++) {
+                if(!addTerm(terms.get(i))) continue;
+                long start = offsets[i];
+                if(start + rowBytes > channel.size()) {
+                    throw new IOException("Vector for " + terms.get(i) + " extends past the end of " + file);
+                }
+                if(segmentStart < 0 || start < segmentStart || start + rowBytes - segmentStart > MAX_SEGMENT_BYTES) {
+                    if(segmentStart >= 0) {
+                        segmentList.add(map(channel, segmentStart, segmentEnd));
+                    }
+                    segmentStart = start;
+                    segmentEnd = start;
+                }
+                segmentEnd = Math.max(segmentEnd, start + rowBytes);
+                rowSegment[row] = segmentList.size();
+                rowPosition[row] = (int) (start - segmentStart);
+                row++;
+            }
+            if(segmentStart >= 0) {
+                segmentList.add(map(channel, segmentStart, segmentEnd));
+            }
+            truncateVectors(row);
+        }
+        segments = segmentList.toArray(new ByteBuffer[segmentList.size()]);
+        LOGGER.info("Mapped " + size() + " vectors from " + file + " in " + segments.length + " segment(s)");
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return the file that the vectors are mapped from
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    protected void appendVector(WordEmbedding embedding) {
+        throw new UnsupportedOperationException("Cannot add vectors to memory-mapped embeddings");
+    }
+
+    /**
+     * Get a copy of the stored vector (scaled if this object has been normalized)
+     */
+    @Override
+    protected WordEmbedding vector(int row) {
+        ByteBuffer segment = segments[rowSegment[row]];
+        int position = rowPosition[row];
+        float scale = rowScale[row];
+        float[] vector = new float[dimensionality()];
+        for(int i=0; i<vector.length; i++) {
+            vector[i] = segment.getFloat(position + 4 * i) * scale;
+        }
+        return new WordEmbedding(vector, 0, vector.length);
+    }
+
+    @Override
+    protected void dotRange(WordEmbedding query, int begin, int end, double[] results, int resultsOffset) {
+        VectorKernels kernels = VectorKernels.INSTANCE;
+        float[] q = query.data();
+        int qOffset = query.offset();
+        int dim = dimensionality();
+        for(int row=begin; row<end; row++) {
+            results[resultsOffset + row - begin] = kernels.dot(q, qOffset, segments[rowSegment[row]], rowPosition[row], dim) * rowScale[row];
+        }
+    }
+
+    /**
+     * One query at a time (the rows are in mapped buffers, not in arrays)
+     */
+    @Override
+    protected void dotTile(float[] block, int nQueries, int begin, int end, double[] scores) {
+        int dim = dimensionality();
+        for(int q=0; q<nQueries; q++) {
+            dotRange(new WordEmbedding(block, q * dim, dim), begin, end, scores, q * Embeddings.TILE_ROWS);
+        }
+    }
+
+    @Override
+    protected void moveVector(int from, int to) {
+        rowSegment[to] = rowSegment[from];
+        rowPosition[to] = rowPosition[from];
+        rowScale[to] = rowScale[from];
+    }
+
+    @Override
+    protected void truncateVectors(int size) {
+        rowSegment = Arrays.copyOf(rowSegment, size);
+        rowPosition = Arrays.copyOf(rowPosition, size);
+        rowScale = Arrays.copyOf(rowScale, size);
+    }
+
+    /**
+     * Normalize by recording the inverse magnitude of each row; the mapped file is not modified
+     */
+    @Override
+    public void normalizeAll() {
+        int dim = dimensionality();
+        for(int row=0; row<size(); row++) {
+            ByteBuffer segment = segments[rowSegment[row]];
+            int position = rowPosition[row];
+            double sqsum = 0;
+            for(int i=0; i<dim; i++) {
+                double x = segment.getFloat(position + 4 * i);
+                sqsum += x * x;
+            }
+            rowScale[row] = sqsum == 0 ? 1f : (float) (1 / Math.sqrt(sqsum));
+        }
+        dropQuantization();
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Serialize as ordinary heap embeddings (a mapping cannot be serialized)
+     */
+    private Object writeReplace() {
+        Embeddings copy = new Embeddings(dimensionality());
+        for(int row=0; row<size(); row++) {
+            Phrase term = term(row);
+            copy.addWordAndEmbedding(term, vector(row));
+            copy.setWordFrequency(term, getFrequency(term));
+        }
+        return copy;
+    }
+}
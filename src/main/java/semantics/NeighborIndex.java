@@ -0,0 +1,33 @@
+package semantics;
+
+/**
+ * An index over the vectors of an Embeddings object that answers similarity queries without scanning every vector.
+ * Results may be approximate (some true matches missed), but every score returned is an exact dot product.
+ * Indices in results are the same as those of the Embeddings object the index was built over.
+ */
+public interface NeighborIndex {
+
+    /**
+     * Find the stored vectors with the highest dot product with a query
+     * @param query a vector of the same dimensionality as the embeddings
+     * @param k how many to find
+     * @return up to k indices and scores, best first
+     */
+    Neighbors topK(WordEmbedding query, int k);
+
+    /**
+     * Find stored vectors whose dot product with a query meets a threshold
+     * @param query a vector of the same dimensionality as the embeddings
+     * @param threshold minimum dot product to include a vector
+     * @return indices and scores of matches, in ascending index order
+     */
+    Neighbors findAllAbove(WordEmbedding query, double threshold);
+
+    /**
+     * @return the kind of index and any parameters that change which neighbors it finds
+     *         (the same for two indices over the same embeddings that would give the same results)
+     */
+    default String describe() {
+        return getClass().getName();
+    }
+}
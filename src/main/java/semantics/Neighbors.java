@@ -0,0 +1,104 @@
+package semantics;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of (term index, score) pairs, as returned by similarity searches over Embeddings.
+ * Uses primitive arrays so that large result sets don't box every index and score.
+ */
+public class Neighbors {
+
+    private int[] indices;
+    private double[] scores;
+    private int size;
+
+    public Neighbors() {
+        this(16);
+    }
+
+    public Neighbors(int capacity) {
+        indices = new int[Math.max(capacity, 1)];
+        scores = new double[Math.max(capacity, 1)];
+    }
+
+    public void add(int index, double score) {
+        if(size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+            scores = Arrays.copyOf(scores, size * 2);
+        }
+        indices[size] = index;
+        scores[size] = score;
+        size++;
+    }
+
+    /**
+     * Append all pairs from another list
+     */
+    public void addAll(Neighbors other) {
+        for(int i=0; i<other.size; i++) {
+            add(other.indices[i], other.scores[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i position in this list
+     * @return the term index at that position
+     */
+    public int index(int i) {
+        return indices[i];
+    }
+
+    /**
+     * @param i position in this list
+     * @return the score at that position
+     */
+    public double score(int i) {
+        return scores[i];
+    }
+
+    /**
+     * @return a copy of the term indices, in list order
+     */
+    public int[] indices() {
+        return Arrays.copyOf(indices, size);
+    }
+
+    /**
+     * @return a copy of the scores, in list order
+     */
+    public double[] scores() {
+        return Arrays.copyOf(scores, size);
+    }
+
+    /**
+     * Reorder this list by ascending term index (indices are assumed to be unique)
+     */
+    public void sortByIndex() {
+        // sort (index, position) pairs packed into longs, then permute the scores to match
+        long[] keys = new long[size];
+        for(int i=0; i<size; i++) {
+            keys[i] = ((long) indices[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        double[] sortedScores = new double[scores.length];
+        for(int i=0; i<size; i++) {
+            indices[i] = (int) (keys[i] >>> 32);
+            sortedScores[i] = scores[(int) keys[i]];
+        }
+        scores = sortedScores;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for(int i=0; i<size; i++) {
+            if(i > 0) builder.append(", ");
+            builder.append(indices[i]).append('=').append(scores[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
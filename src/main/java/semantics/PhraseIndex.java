@@ -0,0 +1,136 @@
+package semantics;
+
+import phrases.Phrase;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps phrases to consecutive int indices and back, without boxing.
+ * Phrases are kept in index order in an array, alongside their hash codes; lookups probe an open-addressing table
+ * (linear probing, at most half full) of index + 1, comparing stored hashes before calling equals().
+ * A lookup is a single probe sequence with no allocation.
+ */
+class PhraseIndex {
+
+    private Phrase[] phrases;
+    private int[] hashes;
+    private int size;
+    // index + 1 of the phrase in each slot, or 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    PhraseIndex() {
+        this(16);
+    }
+
+    PhraseIndex(int capacity) {
+        phrases = new Phrase[Math.max(capacity, 1)];
+        hashes = new int[phrases.length];
+        allocateSlots(phrases.length);
+    }
+
+    private void allocateSlots(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) << 1;
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    // spread the bits of String.hashCode(), whose low bits are weak for short strings
+    private static int hash(Phrase phrase) {
+        int h = phrase.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Phrase get(int index) {
+        return phrases[index];
+    }
+
+    /**
+     * @return the index of a phrase, or -1 if it is not present
+     */
+    int indexOf(Phrase phrase) {
+        int h = hash(phrase);
+        for(int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if(entry == 0) return -1;
+            if(hashes[entry - 1] == h && phrases[entry - 1].equals(phrase)) return entry - 1;
+        }
+    }
+
+    /**
+     * Add a phrase at the next index
+     * @return false if the phrase was already present (and was not added)
+     */
+    boolean add(Phrase phrase) {
+        int h = hash(phrase);
+        int slot = h & mask;
+        for(; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if(hashes[entry - 1] == h && phrases[entry - 1].equals(phrase)) return false;
+        }
+        if(size == phrases.length) {
+            phrases = Arrays.copyOf(phrases, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        phrases[size] = phrase;
+        hashes[size] = h;
+        size++;
+        if(size * 2 > slots.length) {
+            rehash();
+        } else {
+            slots[slot] = size;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the phrase at one index over the phrase at another (used when compacting; call truncate() afterward)
+     */
+    void move(int from, int to) {
+        phrases[to] = phrases[from];
+        hashes[to] = hashes[from];
+    }
+
+    /**
+     * Drop all phrases at or beyond an index and rebuild the lookup table
+     */
+    void truncate(int newSize) {
+        Arrays.fill(phrases, newSize, size, null);
+        size = newSize;
+        rehash();
+    }
+
+    private void rehash() {
+        allocateSlots(size);
+        for(int i=0; i<size; i++) {
+            int slot = hashes[i] & mask;
+            while(slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * @return an unmodifiable view of the phrases in index order (reflects later additions)
+     */
+    List<Phrase> asList() {
+        return new AbstractList<Phrase>() {
+            @Override
+            public Phrase get(int index) {
+                if(index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+                return phrases[index];
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,229 @@
+package semantics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A reduced-precision copy of the vectors in an Embeddings object, for fast approximate scans.
+ * Each approximate dot product comes with an upper bound on its error, so callers can recompute exact scores
+ * for just those vectors that might meet a threshold (see Embeddings.quantize()).
+ *
+ * Two encodings:
+ *  - INT8: each vector is scaled so its largest component maps to 127 and rounded to bytes (4x smaller than floats).
+ *      Every component is off by at most half the scale, so a dot product with q is off by at most |q|_1 * scale / 2.
+ *  - FLOAT16: IEEE half-precision floats (2x smaller). Rounding error is at most 2^-11 of each component
+ *      (plus a tiny absolute error for subnormals), so a dot product is off by at most about 2^-11 * |q|_2 * |x|_2.
+ *      Components must be within the half-precision range (+/-65504), as they are for normalized vectors.
+ * The bound also allows for rounding in the kernels that compute exact scores (which may accumulate in float),
+ * so thresholding a rescored value gives the same answer as thresholding a full scan.
+ */
+public class QuantizedVectors {
+
+    private static final Logger LOGGER = Logger.getLogger(QuantizedVectors.class.getName());
+
+    public enum Mode { INT8, FLOAT16 }
+
+    // rows per storage chunk (chunks keep any single array well below the maximum array size)
+    private static final int CHUNK_SHIFT = 14;
+    private static final int ROWS_PER_CHUNK = 1 << CHUNK_SHIFT;
+
+    // float-to-half rounding error, relative and (for subnormals) absolute
+    private static final double HALF_RELATIVE_ERROR = Math.scalb(1.0, -11);
+    private static final double HALF_ABSOLUTE_ERROR = Math.scalb(1.0, -25);
+    // float rounding per accumulated term in an exact dot product
+    private static final double FLOAT_EPSILON = Math.scalb(1.0, -24);
+
+    // every half-precision bit pattern, decoded
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+    static {
+        for(int h=0; h<HALF_TO_FLOAT.length; h++) {
+            HALF_TO_FLOAT[h] = halfToFloat((short) h);
+        }
+    }
+
+    private final Mode mode;
+    private final int dimensionality;
+    private final int size;
+    private final List<byte[]> byteChunks;
+    private final List<short[]> shortChunks;
+    // scale of each row (INT8 only)
+    private final float[] rowScale;
+    private final float[] rowNorm;
+
+    QuantizedVectors(Embeddings embeddings, Mode mode) {
+        this.mode = mode;
+        dimensionality = embeddings.dimensionality();
+        size = embeddings.size();
+        rowScale = new float[size];
+        rowNorm = new float[size];
+        byteChunks = new ArrayList<>();
+        shortChunks = new ArrayList<>();
+        for(int row=0; row<size; row++) {
+            float[] vector = embeddings.vector(row).toArray();
+            int offset = (row & (ROWS_PER_CHUNK - 1)) * dimensionality;
+            if(mode == Mode.INT8) {
+                if((row & (ROWS_PER_CHUNK - 1)) == 0) {
+                    byteChunks.add(new byte[Math.min(ROWS_PER_CHUNK, size - row) * dimensionality]);
+                }
+                byte[] chunk = byteChunks.get(row >>> CHUNK_SHIFT);
+                float max = 0;
+                for(float x : vector) {
+                    max = Math.max(max, Math.abs(x));
+                }
+                float scale = max == 0 ? 1 : max / 127;
+                for(int i=0; i<dimensionality; i++) {
+                    chunk[offset + i] = (byte) Math.max(-127, Math.min(127, Math.round(vector[i] / scale)));
+                }
+                rowScale[row] = scale;
+            } else {
+                if((row & (ROWS_PER_CHUNK - 1)) == 0) {
+                    shortChunks.add(new short[Math.min(ROWS_PER_CHUNK, size - row) * dimensionality]);
+                }
+                short[] chunk = shortChunks.get(row >>> CHUNK_SHIFT);
+                for(int i=0; i<dimensionality; i++) {
+                    chunk[offset + i] = floatToHalf(vector[i]);
+                }
+            }
+            rowNorm[row] = (float) new WordEmbedding(vector, 0, dimensionality).mag();
+        }
+        LOGGER.info("Quantized " + size + " vectors to " + mode);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of vectors (fixed when this object was built)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Approximate dot products of a query with a range of rows
+     * @param query the query vector
+     * @param begin first row (inclusive)
+     * @param end last row (exclusive)
+     * @param results array to fill
+     * @param resultsOffset where in the results array to put the score for row begin
+     */
+    void dotRange(WordEmbedding query, int begin, int end, double[] results, int resultsOffset) {
+        float[] q = query.data();
+        int qOffset = query.offset();
+        for(int row=begin; row<end; row++) {
+            int offset = (row & (ROWS_PER_CHUNK - 1)) * dimensionality;
+            double sum;
+            if(mode == Mode.INT8) {
+                sum = dot(q, qOffset, byteChunks.get(row >>> CHUNK_SHIFT), offset) * rowScale[row];
+            } else {
+                sum = dot(q, qOffset, shortChunks.get(row >>> CHUNK_SHIFT), offset);
+            }
+            results[resultsOffset + row - begin] = sum;
+        }
+    }
+
+    // unrolled by four with independent accumulators, like VectorKernels.Scalar
+    private double dot(float[] q, int qOffset, byte[] codes, int offset) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for(; i + 3 < dimensionality; i += 4) {
+            s0 += q[qOffset + i] * (double) codes[offset + i];
+            s1 += q[qOffset + i + 1] * (double) codes[offset + i + 1];
+            s2 += q[qOffset + i + 2] * (double) codes[offset + i + 2];
+            s3 += q[qOffset + i + 3] * (double) codes[offset + i + 3];
+        }
+        for(; i < dimensionality; i++) {
+            s0 += q[qOffset + i] * (double) codes[offset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private double dot(float[] q, int qOffset, short[] halves, int offset) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for(; i + 3 < dimensionality; i += 4) {
+            s0 += q[qOffset + i] * (double) HALF_TO_FLOAT[halves[offset + i] & 0xffff];
+            s1 += q[qOffset + i + 1] * (double) HALF_TO_FLOAT[halves[offset + i + 1] & 0xffff];
+            s2 += q[qOffset + i + 2] * (double) HALF_TO_FLOAT[halves[offset + i + 2] & 0xffff];
+            s3 += q[qOffset + i + 3] * (double) HALF_TO_FLOAT[halves[offset + i + 3] & 0xffff];
+        }
+        for(; i < dimensionality; i++) {
+            s0 += q[qOffset + i] * (double) HALF_TO_FLOAT[halves[offset + i] & 0xffff];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Norms of a query that the error bound depends on
+     * @return {L1 norm, L2 norm}
+     */
+    double[] queryNorms(WordEmbedding query) {
+        double l1 = 0;
+        for(int i=0; i<query.size(); i++) {
+            l1 += Math.abs(query.get(i));
+        }
+        return new double[] {l1, query.mag()};
+    }
+
+    /**
+     * Upper bound on the difference between an approximate dot product from dotRange() and the exact value
+     * @param row the row
+     * @param queryNorms as returned by queryNorms() for the query
+     */
+    double errorBound(int row, double[] queryNorms) {
+        double rounding = dimensionality * FLOAT_EPSILON * queryNorms[1] * rowNorm[row];
+        if(mode == Mode.INT8) {
+            return queryNorms[0] * rowScale[row] / 2 + rounding;
+        } else {
+            return HALF_RELATIVE_ERROR * queryNorms[1] * rowNorm[row] + HALF_ABSOLUTE_ERROR * queryNorms[0] + rounding;
+        }
+    }
+
+    /**
+     * Round a float to the nearest IEEE 754 half-precision value (ties to even)
+     */
+    static short floatToHalf(float f) {
+        int bits = Float.floatToIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+        if(exponent >= 31) {
+            // overflow, infinity, or NaN
+            boolean nan = ((bits >>> 23) & 0xff) == 0xff && mantissa != 0;
+            return (short) (sign | 0x7c00 | (nan ? 0x200 : 0));
+        }
+        if(exponent <= 0) {
+            // subnormal half (or zero)
+            if(exponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if(remainder > halfway || (remainder == halfway && (half & 1) == 1)) half++;
+            return (short) (sign | half);
+        }
+        int half = (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1fff;
+        if(remainder > 0x1000 || (remainder == 0x1000 && (half & 1) == 1)) half++;
+        // rounding may carry into the exponent, which is still correct (up to infinity)
+        return (short) (sign | half);
+    }
+
+    static float halfToFloat(short h) {
+        int bits = h & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if(exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if(exponent == 0) {
+            float value = mantissa * (float) Math.scalb(1.0, -24);
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
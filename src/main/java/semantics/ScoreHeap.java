@@ -0,0 +1,124 @@
+package semantics;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (index, score) pairs, with the worst pair on top: the lowest score, and among equal scores
+ * the highest index. Keeping the best k pairs seen (push, then pop while size() > k) therefore prefers lower indices
+ * on ties, so results don't depend on the order pairs are seen in.
+ * Can be used as a max-heap by negating scores.
+ */
+class ScoreHeap {
+
+    private int[] nodes;
+    private double[] scores;
+    private int size;
+
+    ScoreHeap() {
+        this(16);
+    }
+
+    ScoreHeap(int capacity) {
+        nodes = new int[Math.max(capacity, 1)];
+        scores = new double[Math.max(capacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int topNode() {
+        return nodes[0];
+    }
+
+    double topScore() {
+        return scores[0];
+    }
+
+    /**
+     * @param i a position in [0, size()), in no particular order
+     */
+    int node(int i) {
+        return nodes[i];
+    }
+
+    /**
+     * @param i a position in [0, size()), in no particular order
+     */
+    double score(int i) {
+        return scores[i];
+    }
+
+    private static boolean worse(double score, int node, double otherScore, int otherNode) {
+        return score < otherScore || (score == otherScore && node > otherNode);
+    }
+
+    /**
+     * @return true if a pair would be popped before the pair on top of this heap
+     */
+    boolean worseThanTop(int node, double score) {
+        return worse(score, node, scores[0], nodes[0]);
+    }
+
+    void push(int node, double score) {
+        if(size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            scores = Arrays.copyOf(scores, size * 2);
+        }
+        int i = size++;
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(!worse(score, node, scores[parent], nodes[parent])) break;
+            nodes[i] = nodes[parent];
+            scores[i] = scores[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        scores[i] = score;
+    }
+
+    void pop() {
+        size--;
+        int node = nodes[size];
+        double score = scores[size];
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size) break;
+            if(child + 1 < size && worse(scores[child + 1], nodes[child + 1], scores[child], nodes[child])) child++;
+            if(!worse(scores[child], nodes[child], score, node)) break;
+            nodes[i] = nodes[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        nodes[i] = node;
+        scores[i] = score;
+    }
+
+    /**
+     * Empty this heap into a list, best pair first
+     */
+    Neighbors drainBestFirst() {
+        int n = size;
+        int[] sortedNodes = new int[n];
+        double[] sortedScores = new double[n];
+        for(int i=n-1; i>=0; i--) {
+            sortedNodes[i] = nodes[0];
+            sortedScores[i] = scores[0];
+            pop();
+        }
+        Neighbors best = new Neighbors(n);
+        for(int i=0; i<n; i++) {
+            best.add(sortedNodes[i], sortedScores[i]);
+        }
+        return best;
+    }
+
+    ScoreHeap copy() {
+        ScoreHeap copy = new ScoreHeap(0);
+        copy.nodes = Arrays.copyOf(nodes, Math.max(size, 1));
+        copy.scores = Arrays.copyOf(scores, Math.max(size, 1));
+        copy.size = size;
+        return copy;
+    }
+}
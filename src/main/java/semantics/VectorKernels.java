@@ -0,0 +1,219 @@
+package semantics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+/**
+ * Arithmetic kernels over slices of float arrays, used for all vector math in WordEmbedding and Embeddings.
+ *
+ * The implementation is picked once, at class load:
+ *  - on Java 17+ with the incubating Vector API enabled (JVM argument --add-modules jdk.incubator.vector),
+ *      SimdKernels (only present in the multi-release jar, under META-INF/versions/17) is used;
+ *  - otherwise, the unrolled scalar loops in this class are used.
+ * To force the scalar kernels, use JVM argument -DvectorKernels=scalar
+ */
+abstract class VectorKernels {
+
+    private static final Logger LOGGER = Logger.getLogger(VectorKernels.class.getName());
+
+    private static final String SIMD_CLASS = "semantics.SimdKernels";
+
+    static final VectorKernels INSTANCE = select();
+
+    private static VectorKernels select() {
+        if(!"scalar".equals(System.getProperty("vectorKernels"))) {
+            try {
+                VectorKernels simd = (VectorKernels) Class.forName(SIMD_CLASS).getDeclaredConstructor().newInstance();
+                if(simd.agreesWith(new Scalar())) {
+                    LOGGER.info("Using " + simd + " for vector arithmetic");
+                    return simd;
+                }
+                LOGGER.warning(simd + " gave unexpected results; falling back to scalar kernels");
+            } catch(ReflectiveOperationException | LinkageError e) {
+                // Java 8, or the Vector API module was not added: expected, so not worth a warning
+                LOGGER.fine("Vector API kernels not available: " + e);
+            }
+        }
+        LOGGER.info("Using scalar kernels for vector arithmetic");
+        return new Scalar();
+    }
+
+    /**
+     * Run every kernel on a small problem (forcing any linkage errors now rather than mid-computation)
+     * and compare the results against another implementation, which they must match exactly
+     * (so that scores, and thesauri, don't depend on the JDK or the hardware)
+     */
+    private boolean agreesWith(VectorKernels reference) {
+        int n = 37;
+        float[] a = new float[n];
+        float[] b = new float[n];
+        for(int i=0; i<n; i++) {
+            a[i] = (float) Math.sin(i + 1);
+            b[i] = (float) Math.cos(1.3 * i) / 3;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 * n + 4).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i=0; i<n; i++) {
+            buffer.putFloat(4 + 4 * i, b[i]);
+        }
+        if(dot(a, 0, b, 0, n) != reference.dot(a, 0, b, 0, n)) return false;
+        if(dot(a, 0, buffer, 4, n) != reference.dot(a, 0, buffer, 4, n)) return false;
+        if(sumOfSquares(a, 1, n - 1) != reference.sumOfSquares(a, 1, n - 1)) return false;
+        if(squaredDistance(a, 0, b, 0, n) != reference.squaredDistance(a, 0, b, 0, n)) return false;
+        float[] c = a.clone();
+        float[] d = a.clone();
+        add(c, 0, b, 0, n);
+        reference.add(d, 0, b, 0, n);
+        subtract(c, 1, b, 0, n - 1);
+        reference.subtract(d, 1, b, 0, n - 1);
+        divide(c, 0, n, 3);
+        reference.divide(d, 0, n, 3);
+        for(int i=0; i<n; i++) {
+            if(c[i] != d[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return sum of a[aOffset + i] * b[bOffset + i] for i in [0, length)
+     */
+    abstract double dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Dot product with little-endian floats stored in a buffer (such as a memory-mapped file)
+     * @param b a buffer in little-endian byte order
+     * @param bPosition absolute byte position of the first float
+     */
+    abstract double dot(float[] a, int aOffset, ByteBuffer b, int bPosition, int length);
+
+    /**
+     * Dot products of one vector with several vectors stored one after another (such as a block of queries),
+     * each exactly equal to dot(a, aOffset, b, bOffset + q * length, length)
+     * @param count number of vectors in b
+     * @param results receives the product with vector q at resultsOffset + q * resultsStride
+     */
+    abstract void dots(float[] a, int aOffset, float[] b, int bOffset, int count, int length,
+                       double[] results, int resultsOffset, int resultsStride);
+
+    abstract double sumOfSquares(float[] a, int offset, int length);
+
+    abstract double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * a += b, elementwise
+     */
+    abstract void add(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * a -= b, elementwise
+     */
+    abstract void subtract(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * a /= divisor, elementwise
+     */
+    abstract void divide(float[] a, int offset, int length, double divisor);
+
+    /**
+     * Plain Java loops, as WordEmbedding computed them before these kernels: each product is taken in float and added,
+     * in order, to a single double. C2 compiles these loops well (better than unrolled loops with several
+     * accumulators), and SimdKernels inherits them, so results don't depend on which kernels are loaded.
+     */
+    static class Scalar extends VectorKernels {
+
+        @Override
+        double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            double sum = 0;
+            for(int i=0; i<length; i++) {
+                sum += a[aOffset + i] * b[bOffset + i];
+            }
+            return sum;
+        }
+
+        /**
+         * Four vectors of b at a time: each element of a is loaded once for all four, and the four sums
+         * (each still added in order, so each is exactly dot()) are independent, so they don't wait on each other
+         */
+        @Override
+        void dots(float[] a, int aOffset, float[] b, int bOffset, int count, int length,
+                  double[] results, int resultsOffset, int resultsStride) {
+            int q = 0;
+            for(; q + 3 < count; q += 4) {
+                int b0 = bOffset + q * length;
+                int b1 = b0 + length;
+                int b2 = b1 + length;
+                int b3 = b2 + length;
+                double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                for(int i=0; i<length; i++) {
+                    float x = a[aOffset + i];
+                    s0 += x * b[b0 + i];
+                    s1 += x * b[b1 + i];
+                    s2 += x * b[b2 + i];
+                    s3 += x * b[b3 + i];
+                }
+                results[resultsOffset + q * resultsStride] = s0;
+                results[resultsOffset + (q + 1) * resultsStride] = s1;
+                results[resultsOffset + (q + 2) * resultsStride] = s2;
+                results[resultsOffset + (q + 3) * resultsStride] = s3;
+            }
+            for(; q < count; q++) {
+                results[resultsOffset + q * resultsStride] = dot(a, aOffset, b, bOffset + q * length, length);
+            }
+        }
+
+        @Override
+        double dot(float[] a, int aOffset, ByteBuffer b, int bPosition, int length) {
+            double sum = 0;
+            for(int i=0; i<length; i++) {
+                sum += a[aOffset + i] * b.getFloat(bPosition + 4 * i);
+            }
+            return sum;
+        }
+
+        @Override
+        double sumOfSquares(float[] a, int offset, int length) {
+            double sum = 0;
+            for(int i=0; i<length; i++) {
+                double x = a[offset + i];
+                sum += x * x;
+            }
+            return sum;
+        }
+
+        @Override
+        double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            double sum = 0;
+            for(int i=0; i<length; i++) {
+                double d = (double) a[aOffset + i] - b[bOffset + i];
+                sum += d * d;
+            }
+            return sum;
+        }
+
+        @Override
+        void add(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            for(int i=0; i<length; i++) {
+                a[aOffset + i] += b[bOffset + i];
+            }
+        }
+
+        @Override
+        void subtract(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            for(int i=0; i<length; i++) {
+                a[aOffset + i] -= b[bOffset + i];
+            }
+        }
+
+        @Override
+        void divide(float[] a, int offset, int length, double divisor) {
+            for(int i=offset; i<offset + length; i++) {
+                a[i] /= divisor;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "scalar kernels";
+        }
+    }
+}
@@ -10,104 +10,118 @@ import java.util.Iterator;
 
 /**
  * Class for representing word embeddings and performing computations on them
+ * An embedding either owns its own array or is a view onto one row of an Embeddings matrix;
+ * modifying a view modifies the stored vector.
  * Created by gpfinley on 3/14/16.
  */
 public class WordEmbedding implements Serializable {
 
-    private float[] vector;
+    private float[] data;
+    private int offset;
+    private int size;
 
     public WordEmbedding(int dimensionality) {
         this(new float[dimensionality]);
     }
 
     public WordEmbedding(float[] vector) {
-        this.vector = Arrays.copyOf(vector, vector.length);
+        this(Arrays.copyOf(vector, vector.length), 0, vector.length);
     }
 
     public WordEmbedding(WordEmbedding orig) {
-        vector = new float[orig.size()];
-        for(int i=0; i < vector.length; i++) {
-            vector[i] = (float)orig.get(i);
-        }
+        this(orig.toArray(), 0, orig.size());
+    }
+
+    /**
+     * Create a view onto a slice of an existing array (no copying)
+     * @param data the backing array
+     * @param offset index of the first element of this vector
+     * @param size number of dimensions
+     */
+    WordEmbedding(float[] data, int offset, int size) {
+        this.data = data;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    float[] data() {
+        return data;
+    }
+
+    int offset() {
+        return offset;
     }
 
     public double get(int i) {
-        return (double)vector[i];
+        return (double)data[offset + i];
     }
 
     public int size() {
-        return vector.length;
+        return size;
+    }
+
+    /**
+     * @return a copy of this vector's values
+     */
+    public float[] toArray() {
+        return Arrays.copyOfRange(data, offset, offset + size);
     }
 
     public void normalize() {
         double mag = mag();
         if(mag == 0) return;
-        for(int i=0; i<vector.length; i++) {
-            vector[i] /= mag;
-        }
+        VectorKernels.INSTANCE.divide(data, offset, size, mag);
     }
 
     public double mag() {
-        double sqsum = 0;
-        for(double x : vector) {
-            sqsum += x * x;
-        }
-        return Math.sqrt(sqsum);
+        return Math.sqrt(VectorKernels.INSTANCE.sumOfSquares(data, offset, size));
     }
 
     public double dot(WordEmbedding other) {
-        double sum = 0;
-        for(int i=0; i<vector.length; i++) {
-            sum += vector[i] * other.get(i);
-        }
-        return sum;
+        return VectorKernels.INSTANCE.dot(data, offset, other.data, other.offset, size);
     }
 
     public WordEmbedding sum(WordEmbedding other) {
-        float[] sum = Arrays.copyOf(vector, vector.length);
-        for(int i=0; i<vector.length; i++) {
+        float[] sum = toArray();
+        for(int i=0; i<size; i++) {
             sum[i] += other.get(i);
         }
-        return new WordEmbedding(sum);
+        return new WordEmbedding(sum, 0, size);
     }
 
     public WordEmbedding hadamard(WordEmbedding other) {
         WordEmbedding prod = new WordEmbedding(this);
-        for(int i=0; i<vector.length; i++) {
-            prod.vector[i] *= other.vector[i];
+        for(int i=0; i<size; i++) {
+            prod.data[i] *= other.data[other.offset + i];
         }
         return prod;
     }
 
     public WordEmbedding difference(WordEmbedding other) {
-        float[] diff = Arrays.copyOf(vector, vector.length);
-        for(int i=0; i<vector.length; i++) {
+        float[] diff = toArray();
+        for(int i=0; i<size; i++) {
             diff[i] -= other.get(i);
         }
-        return new WordEmbedding(diff);
+        return new WordEmbedding(diff, 0, size);
     }
 
     public void add(WordEmbedding other) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] += other.get(i);
-        }
+        VectorKernels.INSTANCE.add(data, offset, other.data, other.offset, size);
     }
 
     public void add(double addend) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] += addend;
+        for(int i=0; i<size; i++) {
+            data[offset + i] += addend;
         }
     }
 
     public void subtract(WordEmbedding other) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] -= other.get(i);
-        }
+        VectorKernels.INSTANCE.subtract(data, offset, other.data, other.offset, size);
     }
 
     public void scalarMultiply(double s) {
-        for(int i=0; i<vector.length; i++)
-            vector[i] *= s;
+        for(int i=0; i<size; i++)
+            data[offset + i] *= s;
     }
 
     public double cosSim(WordEmbedding other) {
@@ -115,23 +129,19 @@ public class WordEmbedding implements Serializable {
     }
 
     public double euclidDist(WordEmbedding other) {
-        double diff = 0;
-        for(int i=0; i<vector.length; i++) {
-            diff += Math.pow(vector[i] - other.get(i), 2);
-        }
-        return Math.sqrt(diff);
+        return Math.sqrt(VectorKernels.INSTANCE.squaredDistance(data, offset, other.data, other.offset, size));
     }
 
     @Override
     public String toString() {
-        return Arrays.toString(vector);
+        return Arrays.toString(toArray());
     }
 
     @Override
     public boolean equals(Object other) {
         if(!(other instanceof WordEmbedding)) return false;
-        for(int i=0; i<vector.length; i++) {
-            if(vector[i] != ((WordEmbedding)other).get(i)) {
+        for(int i=0; i<size; i++) {
+            if(data[offset + i] != ((WordEmbedding)other).get(i)) {
                 return false;
             }
         }
@@ -144,10 +154,12 @@ public class WordEmbedding implements Serializable {
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
-        stream.writeObject(vector);
+        stream.writeObject(toArray());
     }
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
-        vector = (float[]) stream.readObject();
+        data = (float[]) stream.readObject();
+        offset = 0;
+        size = data.length;
     }
 
 }
@@ -0,0 +1,227 @@
+package thesaurus;
+
+import phrases.Phrase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * An inverted index of the characters and bigrams (pairs of adjacent characters within a word) of phrases,
+ * for finding every phrase whose orthographic or abbreviation distance to a given phrase could meet its threshold
+ * without computing any distances (see ThesaurusMaker.CandidateOrder).
+ *
+ * The filters follow from counting. Every character of a phrase that an alignment leaves unmatched costs at least
+ * a deletion or a substitution, and every bigram it breaks costs at least half of one (or a deletion from the other
+ * phrase), so two phrases within some distance of each other must share a number of characters and bigrams
+ * (counting repeats). Permuting words changes neither count. An abbreviation must also start with the same letter
+ * as its long form, unless its threshold allows for the cost of a mismatched initial.
+ * Only pairs that certainly fail are filtered out, so the candidates include every pair that passes.
+ *
+ * A query counts what the phrase shares with all others by walking the postings of its characters and bigrams,
+ * then checks every phrase against the filters: time linear in the vocabulary, but with no vector arithmetic.
+ */
+class CandidateIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(CandidateIndex.class.getName());
+
+    private final List<Phrase> phrases;
+    private final OrthographicDistance orthoDistance;
+    private final OrthographicDistance abbrDistance;
+    private final double orthoMax;
+    private final double abbrMax;
+    // extra distance an alignment may have when a negative permutation penalty is added to it
+    private final double permutationAllowance;
+
+    // length (as thresholds are normalized), normalized length, number of bigrams, and first character
+    // (-1 if empty) of each phrase
+    private final int[] lengths;
+    private final int[] normalLengths;
+    private final int[] nBigrams;
+    private final int[] initials;
+
+    private final Map<Integer, Postings> charPostings = new HashMap<>();
+    private final Map<Integer, Postings> bigramPostings = new HashMap<>();
+
+    // characters and bigrams shared with each phrase by the phrase being queried
+    private final ThreadLocal<int[][]> shared;
+
+    /**
+     * The phrases that contain one character or bigram, in ascending order, with the number of times each has it
+     */
+    private static class Postings {
+        private int[] phrases = new int[4];
+        private int[] counts = new int[4];
+        private int size;
+
+        void add(int phrase, int count) {
+            if(size == phrases.length) {
+                phrases = Arrays.copyOf(phrases, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            phrases[size] = phrase;
+            counts[size] = count;
+            size++;
+        }
+    }
+
+    /**
+     * @param phrases the phrases to index, by index
+     * @param orthoDistance the orthographic distance and its normalized threshold
+     * @param abbrDistance the abbreviation distance and its normalized threshold
+     *                     (must compare case the same way as orthoDistance)
+     * @param permutationPenalty the penalty for permuting phrases in the orthographic distance, or null for none
+     */
+    CandidateIndex(List<Phrase> phrases, OrthographicDistance orthoDistance, double orthoMax,
+                   OrthographicDistance abbrDistance, double abbrMax, Double permutationPenalty) {
+        if(orthoDistance.isCaseSensitive() != abbrDistance.isCaseSensitive()) {
+            throw new IllegalArgumentException("Orthographic and abbreviation distances must compare case the same way");
+        }
+        this.phrases = phrases;
+        this.orthoDistance = orthoDistance;
+        this.abbrDistance = abbrDistance;
+        this.orthoMax = orthoMax;
+        this.abbrMax = abbrMax;
+        permutationAllowance = permutationPenalty == null ? 0 : Math.max(0, -permutationPenalty);
+
+        int n = phrases.size();
+        lengths = new int[n];
+        normalLengths = new int[n];
+        nBigrams = new int[n];
+        initials = new int[n];
+        for(int i=0; i<n; i++) {
+            String form = orthoDistance.normalize(phrases.get(i).toString());
+            lengths[i] = phrases.get(i).length();
+            normalLengths[i] = form.length();
+            initials[i] = form.isEmpty() ? -1 : form.charAt(0);
+            addPostings(i, characters(form), charPostings);
+            int[] bigrams = bigrams(form);
+            nBigrams[i] = bigrams.length;
+            addPostings(i, bigrams, bigramPostings);
+        }
+        LOGGER.info("Indexed " + n + " phrases by " + charPostings.size() + " characters and "
+                + bigramPostings.size() + " bigrams");
+        shared = ThreadLocal.withInitial(() -> new int[2][n]);
+    }
+
+    /**
+     * Find the phrases that might pass the orthographic threshold with a phrase (in either order), or the abbreviation
+     * threshold (taking either as the abbreviation). Safe to call from several threads at once
+     * @param index index of the phrase
+     * @param begin index of the first phrase to consider
+     * @return indices of the candidates from begin on (including the phrase itself, if it is among them), in ascending order
+     */
+    int[] candidates(int index, int begin) {
+        int n = phrases.size();
+        int[][] counts = shared.get();
+        int[] sharedChars = counts[0];
+        int[] sharedBigrams = counts[1];
+        String form = orthoDistance.normalize(phrases.get(index).toString());
+        countShared(characters(form), charPostings, sharedChars, begin);
+        countShared(bigrams(form), bigramPostings, sharedBigrams, begin);
+
+        int[] candidates = new int[16];
+        int size = 0;
+        for(int c=begin; c<n; c++) {
+            if(mightPass(index, c, sharedChars[c], sharedBigrams[c])) {
+                if(size == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, size * 2);
+                }
+                candidates[size++] = c;
+            }
+            sharedChars[c] = 0;
+            sharedBigrams[c] = 0;
+        }
+        return Arrays.copyOf(candidates, size);
+    }
+
+    private boolean mightPass(int h, int c, int sharedChars, int sharedBigrams) {
+        double orthoLimit = orthoMax * Math.max(lengths[h], lengths[c]) + ThesaurusMaker.BOUND_SLACK + permutationAllowance;
+        if(fits(orthoDistance, h, c, sharedChars, sharedBigrams, orthoLimit, false)
+                || fits(orthoDistance, c, h, sharedChars, sharedBigrams, orthoLimit, false)) {
+            return true;
+        }
+        return fits(abbrDistance, h, c, sharedChars, sharedBigrams, abbrMax * lengths[h] + ThesaurusMaker.BOUND_SLACK, true)
+                || fits(abbrDistance, c, h, sharedChars, sharedBigrams, abbrMax * lengths[c] + ThesaurusMaker.BOUND_SLACK, true);
+    }
+
+    /**
+     * @param a index of the first phrase given to the distance
+     * @param b index of the second
+     * @param limit the largest distance of interest
+     * @param initial whether the first characters are aligned with each other (false if words may be permuted)
+     * @return false if the distance certainly exceeds the limit
+     */
+    private boolean fits(OrthographicDistance distance, int a, int b, int sharedChars, int sharedBigrams,
+                         double limit, boolean initial) {
+        if((normalLengths[a] - sharedChars) * distance.unmatchedCostA() > limit
+                || (normalLengths[b] - sharedChars) * distance.unmatchedCostB() > limit
+                || (nBigrams[a] - sharedBigrams) * distance.brokenBigramCostA() > limit
+                || (nBigrams[b] - sharedBigrams) * distance.brokenBigramCostB() > limit) {
+            return false;
+        }
+        return !initial || initials[a] < 0 || initials[b] < 0 || initials[a] == initials[b]
+                || distance.initialMismatchCost() <= limit;
+    }
+
+    /**
+     * Add to each phrase's count the number of times it shares each of the grams (min of the two counts)
+     * @param grams sorted grams of the queried phrase (repeats included)
+     */
+    private static void countShared(int[] grams, Map<Integer, Postings> postings, int[] shared, int begin) {
+        for(int g=0; g<grams.length; ) {
+            int run = 1;
+            while(g + run < grams.length && grams[g + run] == grams[g]) run++;
+            Postings posting = postings.get(grams[g]);
+            if(posting != null) {
+                for(int p=0; p<posting.size; p++) {
+                    if(posting.phrases[p] >= begin) {
+                        shared[posting.phrases[p]] += Math.min(run, posting.counts[p]);
+                    }
+                }
+            }
+            g += run;
+        }
+    }
+
+    private static void addPostings(int phrase, int[] grams, Map<Integer, Postings> postings) {
+        for(int g=0; g<grams.length; ) {
+            int run = 1;
+            while(g + run < grams.length && grams[g + run] == grams[g]) run++;
+            postings.computeIfAbsent(grams[g], k -> new Postings()).add(phrase, run);
+            g += run;
+        }
+    }
+
+    /**
+     * @return the characters of a phrase, sorted
+     */
+    private static int[] characters(String form) {
+        int[] chars = new int[form.length()];
+        for(int i=0; i<chars.length; i++) {
+            chars[i] = form.charAt(i);
+        }
+        Arrays.sort(chars);
+        return chars;
+    }
+
+    /**
+     * @return the bigrams within words of a phrase (those without a space), packed into ints and sorted
+     */
+    private static int[] bigrams(String form) {
+        int[] bigrams = new int[Math.max(0, form.length() - 1)];
+        int size = 0;
+        for(int i=1; i<form.length(); i++) {
+            char first = form.charAt(i - 1);
+            char second = form.charAt(i);
+            if(first != ' ' && second != ' ') {
+                bigrams[size++] = (first << 16) | second;
+            }
+        }
+        bigrams = Arrays.copyOf(bigrams, size);
+        Arrays.sort(bigrams);
+        return bigrams;
+    }
+}
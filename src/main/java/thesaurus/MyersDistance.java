@@ -0,0 +1,268 @@
+package thesaurus;
+
+import phrases.Phrase;
+
+import java.util.Arrays;
+
+/**
+ * Levenshtein distance (unit costs) by Myers' bit-parallel algorithm, in the blocked form of Hyyro:
+ * each column of the dynamic program is held as bit vectors of its vertical deltas (+1 and -1),
+ * 64 cells of the pattern to a word, and a whole word is advanced with a few word operations,
+ * for O(ceil(m/64) * n) time rather than O(m * n).
+ *
+ * The pattern is one of the two words, whose per-character bit masks are kept for each thread for the two patterns
+ * used most recently (identified by array, as cached by Phrase.lowerCaseChars()). Comparing one headword
+ * against many candidates builds its masks once.
+ */
+class MyersDistance {
+
+    private static final ThreadLocal<PatternCache> PATTERNS = ThreadLocal.withInitial(PatternCache::new);
+
+    private MyersDistance() {
+    }
+
+    /**
+     * @param maxCost the largest distance of interest
+     * @return the distance if it is at most maxCost; otherwise some larger value (possibly positive infinity)
+     */
+    static double distance(char[] wordA, char[] wordB, double maxCost) {
+        if(wordA.length == 0) return wordB.length;
+        if(wordB.length == 0) return wordA.length;
+        if(Math.abs(wordA.length - wordB.length) > maxCost) return Double.POSITIVE_INFINITY;
+        // the distance is symmetric, so either word can be the pattern
+        PatternCache cache = PATTERNS.get();
+        PatternMasks masks = cache.masksFor(wordA, wordB);
+        char[] text = masks.pattern == wordA ? wordB : wordA;
+        return masks.blocks == 1 ? distanceOneBlock(masks, text, maxCost) : distanceBlocks(masks, cache, text, maxCost);
+    }
+
+    private static double distanceOneBlock(PatternMasks masks, char[] text, double maxCost) {
+        int m = masks.pattern.length;
+        int n = text.length;
+        long last = 1L << (m - 1);
+        long pv = -1L;
+        long mv = 0;
+        int score = m;
+        for(int j=0; j<n; j++) {
+            long eq = masks.mask(text[j], 0);
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if((ph & last) != 0) {
+                score++;
+            } else if((mh & last) != 0) {
+                score--;
+            }
+            // the first row grows by one in every column
+            ph = (ph << 1) | 1;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+            // each remaining column can lower the last row by at most one
+            if(score - (n - j - 1) > maxCost) return Double.POSITIVE_INFINITY;
+        }
+        return score;
+    }
+
+    private static double distanceBlocks(PatternMasks masks, PatternCache cache, char[] text, double maxCost) {
+        int n = text.length;
+        long[] pvs = cache.verticals(masks.blocks);
+        long[] mvs = cache.negativeVerticals;
+        Arrays.fill(pvs, 0, masks.blocks, -1L);
+        Arrays.fill(mvs, 0, masks.blocks, 0);
+        int score = masks.pattern.length;
+        for(int j=0; j<n; j++) {
+            score += advance(masks, pvs, mvs, text[j]);
+            if(score - (n - j - 1) > maxCost) return Double.POSITIVE_INFINITY;
+        }
+        return score;
+    }
+
+    /**
+     * Advance the vertical deltas of every block by one character of the text
+     * @return the change in the score (the last row)
+     */
+    private static int advance(PatternMasks masks, long[] pvs, long[] mvs, char c) {
+        int blocks = masks.blocks;
+        long last = 1L << ((masks.pattern.length - 1) & 63);
+        // horizontal delta entering each block from the one above (the first row grows by one)
+        int carry = 1;
+        for(int b=0; b<blocks; b++) {
+            long eq = masks.mask(c, b);
+            long pv = pvs[b];
+            long mv = mvs[b];
+            long xv = eq | mv;
+            if(carry < 0) {
+                eq |= 1;
+            }
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            long high = b == blocks - 1 ? last : 1L << 63;
+            int out = (ph & high) != 0 ? 1 : (mh & high) != 0 ? -1 : 0;
+            ph <<= 1;
+            mh <<= 1;
+            if(carry < 0) {
+                mh |= 1;
+            } else if(carry > 0) {
+                ph |= 1;
+            }
+            pvs[b] = mh | ~(xv | ph);
+            mvs[b] = ph & xv;
+            carry = out;
+        }
+        return carry;
+    }
+
+    /**
+     * Permutation search (see WordPermutations) that aligns orderings as texts against the fixed phrase as the pattern,
+     * keeping the vertical deltas and score after each prefix. A prefix is cut off when the rest of the text
+     * could not bring the score back within the limit.
+     */
+    static class PermutationSearch extends WordPermutations {
+        private final PatternMasks masks;
+        private final long[][] positiveVerticals;
+        private final long[][] negativeVerticals;
+        private final int[] scores;
+        private final int lengthDifference;
+
+        /**
+         * @param fixed the characters of the other phrase (not empty)
+         */
+        PermutationSearch(Phrase permuted, char[] permutedChars, char[] fixed) {
+            super(permuted, permutedChars);
+            masks = new PatternMasks();
+            masks.build(fixed);
+            positiveVerticals = new long[size() + 1][masks.blocks];
+            negativeVerticals = new long[size() + 1][masks.blocks];
+            scores = new int[size() + 1];
+            lengthDifference = Math.abs(fixed.length - permutedChars.length);
+        }
+
+        @Override
+        void start() {
+            Arrays.fill(positiveVerticals[0], -1L);
+            Arrays.fill(negativeVerticals[0], 0);
+            scores[0] = masks.pattern.length;
+        }
+
+        @Override
+        boolean extend(int depth, char[] word, int remaining, double limit) {
+            if(lengthDifference > limit) return false;
+            long[] pvs = positiveVerticals[depth + 1];
+            long[] mvs = negativeVerticals[depth + 1];
+            System.arraycopy(positiveVerticals[depth], 0, pvs, 0, pvs.length);
+            System.arraycopy(negativeVerticals[depth], 0, mvs, 0, mvs.length);
+            int score = scores[depth];
+            if(depth > 0) {
+                score += advance(masks, pvs, mvs, ' ');
+            }
+            for(int c=0; c<word.length; c++) {
+                score += advance(masks, pvs, mvs, word[c]);
+                if(score - (remaining + word.length - c - 1) > limit) return false;
+            }
+            scores[depth + 1] = score;
+            return true;
+        }
+
+        @Override
+        double distance(int depth) {
+            return scores[depth];
+        }
+    }
+
+    /**
+     * For each character of a pattern, the bits of the positions where it occurs, 64 positions to a block
+     */
+    private static class PatternMasks {
+        private char[] pattern;
+        private int blocks;
+        // masks of ASCII characters, by character then block
+        private long[] ascii = new long[0];
+        // other characters and their masks (by character then block)
+        private char[] others = new char[4];
+        private long[] otherMasks = new long[0];
+        private int nOthers;
+
+        void build(char[] pattern) {
+            this.pattern = pattern;
+            blocks = (pattern.length + 63) >>> 6;
+            if(ascii.length < 128 * blocks) {
+                ascii = new long[128 * blocks];
+            } else {
+                Arrays.fill(ascii, 0, 128 * blocks, 0);
+            }
+            nOthers = 0;
+            for(int i=0; i<pattern.length; i++) {
+                char c = pattern[i];
+                long bit = 1L << (i & 63);
+                if(c < 128) {
+                    ascii[c * blocks + (i >>> 6)] |= bit;
+                } else {
+                    int o = otherIndex(c);
+                    otherMasks[o * blocks + (i >>> 6)] |= bit;
+                }
+            }
+        }
+
+        private int otherIndex(char c) {
+            for(int o=0; o<nOthers; o++) {
+                if(others[o] == c) return o;
+            }
+            if(nOthers == others.length) {
+                others = Arrays.copyOf(others, nOthers * 2);
+            }
+            if(otherMasks.length < (nOthers + 1) * blocks) {
+                otherMasks = Arrays.copyOf(otherMasks, Math.max((nOthers + 1) * blocks, otherMasks.length * 2));
+            }
+            Arrays.fill(otherMasks, nOthers * blocks, (nOthers + 1) * blocks, 0);
+            others[nOthers] = c;
+            return nOthers++;
+        }
+
+        long mask(char c, int block) {
+            if(c < 128) {
+                return ascii[c * blocks + block];
+            }
+            for(int o=0; o<nOthers; o++) {
+                if(others[o] == c) return otherMasks[o * blocks + block];
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * One thread's masks for its two most recent patterns, and its vectors for patterns of several blocks
+     */
+    private static class PatternCache {
+        private PatternMasks recent = new PatternMasks();
+        private PatternMasks older = new PatternMasks();
+        private long[] positiveVerticals = new long[0];
+        private long[] negativeVerticals = new long[0];
+
+        /**
+         * @return masks for one of the words (built for wordA if neither is cached)
+         */
+        PatternMasks masksFor(char[] wordA, char[] wordB) {
+            if(recent.pattern == wordA || recent.pattern == wordB) {
+                return recent;
+            }
+            PatternMasks swap = older;
+            older = recent;
+            recent = swap;
+            if(recent.pattern != wordA && recent.pattern != wordB) {
+                recent.build(wordA);
+            }
+            return recent;
+        }
+
+        long[] verticals(int blocks) {
+            if(positiveVerticals.length < blocks) {
+                positiveVerticals = new long[blocks];
+                negativeVerticals = new long[blocks];
+            }
+            return positiveVerticals;
+        }
+    }
+}
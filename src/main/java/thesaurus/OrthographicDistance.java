@@ -2,8 +2,6 @@ package thesaurus;
 
 import phrases.Phrase;
 
-import java.util.*;
-
 /**
  * Dynamic program for calculating orthographic distance between two words
  * Can be used for abbreviations, in which case it is asymmetric (call it with abbreviation first, then longform!)
@@ -32,10 +30,58 @@ public class OrthographicDistance {
 
     private final boolean caseSensitive;
 
-    private static final Set<Character> breakingChars;
-    static {
-        breakingChars = new HashSet<>();
-        Collections.addAll(breakingChars, ' ', '-', '/', '_', '&');
+    // lower bounds assume that no alignment step can reduce the distance
+    private final boolean nonNegative;
+    // cheapest deletion from the second word, wherever it happens
+    private final double minDelB;
+    // plain Levenshtein distance (matches free, every other step costs 1), computed bit-parallel
+    private final boolean unitCosts;
+    // every penalty the dynamic program uses is a small integer (as for both presets), so it can run on ints
+    private final boolean integerCosts;
+
+    // characters that break words (' ', '-', '/', '_', '&'), as bits of two longs: characters below 64, then 64-127
+    private static final long BREAKING_LOW = 1L << ' ' | 1L << '-' | 1L << '/' | 1L << '&';
+    private static final long BREAKING_HIGH = 1L << ('_' - 64);
+
+    // allowance for rounding when deciding which diagonals of the dynamic program can be within a maximum
+    private static final double BAND_SLACK = 1e-9;
+
+    // largest penalty (in magnitude) computed in integers, longest pair of words (in total) computed in integers,
+    // and the value of unreachable cells in integer rows (see integerDistance())
+    private static final int MAX_INTEGER_PENALTY = 1 << 16;
+    private static final int MAX_INTEGER_LENGTH = 1 << 13;
+    private static final int INTEGER_INFINITY = Integer.MAX_VALUE / 2;
+
+    // dynamic program rows and per-character deletion costs, reused by each thread's calls
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static class Scratch {
+        private double[] previous = new double[0];
+        private double[] current = new double[0];
+        private double[] deletionCosts = new double[0];
+        private int[] previousInts = new int[0];
+        private int[] currentInts = new int[0];
+        private int[] deletionCostInts = new int[0];
+
+        Scratch ensure(int length) {
+            if(previous.length < length) {
+                int capacity = Math.max(length, previous.length * 2);
+                previous = new double[capacity];
+                current = new double[capacity];
+                deletionCosts = new double[capacity];
+            }
+            return this;
+        }
+
+        Scratch ensureInts(int length) {
+            if(previousInts.length < length) {
+                int capacity = Math.max(length, previousInts.length * 2);
+                previousInts = new int[capacity];
+                currentInts = new int[capacity];
+                deletionCostInts = new int[capacity];
+            }
+            return this;
+        }
     }
 
     /**
@@ -110,6 +156,17 @@ public class OrthographicDistance {
         delB = builder.delB;
         delBWordInitial = builder.delBWordInitial;
         delBInitial = builder.delBInitial;
+        minDelB = Math.min(delB, Math.min(delBWordInitial, delBInitial));
+        nonNegative = match >= 0 && sub >= 0 && initialMatch >= 0 && delA >= 0 && minDelB >= 0;
+        unitCosts = match == 0 && initialMatch == 0 && sub == 1 && delA == 1
+                && delB == 1 && delBWordInitial == 1 && delBInitial == 1;
+        integerCosts = isSmallInteger(match) && isSmallInteger(sub) && isSmallInteger(initialMatch)
+                && isSmallInteger(delA) && isSmallInteger(delB) && isSmallInteger(delBWordInitial)
+                && isSmallInteger(delBInitial);
+    }
+
+    private static boolean isSmallInteger(double penalty) {
+        return penalty == Math.rint(penalty) && Math.abs(penalty) <= MAX_INTEGER_PENALTY;
     }
 
     // todo: should these be specified in the properties file as well? or is it good to not make them that directly editable?
@@ -140,37 +197,6 @@ public class OrthographicDistance {
                 .build();
     }
 
-    /**
-     * Return the shortest possible distance between two Phrases when permuting the shorter of them.
-     * Does NOT test the distance between both unpermuted phrases--
-     *      this is so that a penalty can be applied just to the permutations
-     * @param phraseA one phrase
-     * @param phraseB another
-     * @return the shortest distance (as defined by this object) for a permutation of these words
-     */
-    // todo: should this be made public?? would it be useful outside of this class?
-    private double shortestMustPermute(Phrase phraseA, Phrase phraseB) {
-        double shortestDist = Double.MAX_VALUE;
-        if(phraseA.size() < phraseB.size()) {
-            for(Phrase newA : phraseA.permutations()) {
-                if(newA.equals(phraseA)) continue;
-                double dist = distance(newA, phraseB);
-                if(dist < shortestDist) {
-                    shortestDist = dist;
-                }
-            }
-        } else {
-            for(Phrase newB : phraseB.permutations()) {
-                if(newB.equals(phraseB)) continue;
-                double dist = distance(phraseA, newB);
-                if(dist < shortestDist) {
-                    shortestDist = dist;
-                }
-            }
-        }
-        return shortestDist;
-    }
-
     /**
      * Returns the shortest distance possible when considering all permutations
      * Will not add the penalty to the distance score between the unpermuted phrases
@@ -181,14 +207,179 @@ public class OrthographicDistance {
      * @return the lowest score possible when taking the penalty into account
      */
     public double shortestPermutedDistance(Phrase phraseA, Phrase phraseB, Double permutationPenalty) {
+        return shortestPermutedDistanceWithin(phraseA, phraseB, permutationPenalty, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * A lower bound on shortestPermutedDistance(), computed in linear time without any dynamic programming.
+     * Permutations are bounded using only what they share with the unpermuted phrases: their character counts.
+     * @return the bound, or negative infinity if some penalty is negative (in which case there is no useful bound)
+     */
+    public double permutedLowerBound(Phrase phraseA, Phrase phraseB, Double permutationPenalty) {
+        double unpermuted = lowerBound(phraseA, phraseB);
         if(permutationPenalty == null) {
-            return distance(phraseA, phraseB);
+            return unpermuted;
+        }
+        return Math.min(unpermuted, characterBound(normalize(phraseA.toString()), normalize(phraseB.toString()), false)
+                + permutationPenalty);
+    }
+
+    public double lowerBound(Phrase wordA, Phrase wordB) {
+        return lowerBound(wordA.toString(), wordB.toString());
+    }
+
+    /**
+     * A lower bound on distance(), computed in linear time without any dynamic programming,
+     * so that pairs that could never meet a threshold can be rejected cheaply. Combines:
+     *   a character count bound: characters of either word that the other lacks (counting repeats)
+     *      must be substituted or deleted, and characters of the second word that never occur in the first
+     *      cost at least their own (initial, word-initial, or other) deletion penalty or a substitution;
+     *      with unit costs this is the larger of the two counts (which includes the length difference)
+     *   an initial letter bound: if the words start differently, something must be paid for the first character
+     *   a subsequence check: if the first word (an abbreviation) isn't a subsequence of the second,
+     *      at least one of its characters must be substituted or deleted
+     * @return the bound, or negative infinity if some penalty is negative (in which case there is no useful bound)
+     */
+    public double lowerBound(String wordA, String wordB) {
+        if(!nonNegative) return Double.NEGATIVE_INFINITY;
+        wordA = normalize(wordA);
+        wordB = normalize(wordB);
+        int m = wordA.length();
+        int n = wordB.length();
+        double bound = characterBound(wordA, wordB, true);
+        if(m > 0 && n > 0 && wordA.charAt(0) != wordB.charAt(0)) {
+            // the first character of wordB is deleted, substituted, or matched after deleting from wordA
+            bound = Math.max(bound, Math.min(delBInitial, Math.min(sub, delA)));
+        }
+        if(m > 0 && !isSubsequence(wordA, wordB)) {
+            bound = Math.max(bound, Math.min(delA, sub));
         }
-        return Math.min(shortestMustPermute(phraseA, phraseB) + permutationPenalty, distance(phraseA, phraseB));
+        return bound;
+    }
+
+    /**
+     * @return the word as distance() compares it
+     */
+    String normalize(String word) {
+        return caseSensitive ? word : word.toLowerCase();
+    }
+
+    // Least costs that count-based filters (see CandidateIndex) can rely on; all 0 if some penalty is negative
+
+    /**
+     * @return the least cost of leaving a character of the first word unmatched (deleting or substituting it)
+     */
+    double unmatchedCostA() {
+        return nonNegative ? Math.min(delA, sub) : 0;
+    }
+
+    /**
+     * @return the least cost of leaving a character of the second word unmatched
+     */
+    double unmatchedCostB() {
+        return nonNegative ? Math.min(minDelB, sub) : 0;
+    }
+
+    /**
+     * @return the least cost per broken bigram of the first word: an unmatched character breaks up to two,
+     *         and deleting characters of the second word between two matched ones breaks one
+     */
+    double brokenBigramCostA() {
+        return nonNegative ? Math.min(unmatchedCostA() / 2, minDelB) : 0;
+    }
+
+    /**
+     * @return the least cost per broken bigram of the second word
+     */
+    double brokenBigramCostB() {
+        return nonNegative ? Math.min(unmatchedCostB() / 2, delA) : 0;
+    }
+
+    /**
+     * @return the least the distance between words that start with different characters can be
+     */
+    double initialMismatchCost() {
+        return nonNegative ? Math.min(delBInitial, Math.min(sub, delA)) : 0;
+    }
+
+    boolean isCaseSensitive() {
+        return caseSensitive;
+    }
+
+    /**
+     * Bound from character counts alone. Every character of wordA left over after pairing equal characters
+     * is consumed by a substitution or a deletion from wordA, and likewise for wordB; a substitution consumes one of each.
+     * Three bounds follow: charging every step to its wordA character, to its wordB character, or half of each
+     * substitution to each side (which can add the two sides up).
+     * Characters are counted by their low 7 bits; collisions only make the bound weaker.
+     * @param positional whether wordB's characters are in their final order (otherwise every deletion from wordB
+     *                   is charged the smallest deletion penalty)
+     */
+    private double characterBound(String wordA, String wordB, boolean positional) {
+        int[] counts = new int[128];
+        long presentLow = 0;
+        long presentHigh = 0;
+        for(int i=0; i<wordA.length(); i++) {
+            int c = wordA.charAt(i) & 127;
+            counts[c]++;
+            if(c < 64) presentLow |= 1L << c;
+            else presentHigh |= 1L << c;
+        }
+        int shared = 0;
+        int absent = 0;
+        // costs of the wordB characters that wordA lacks entirely, charging substitutions fully or by halves
+        double absentCost = 0;
+        double absentShare = 0;
+        for(int j=0; j<wordB.length(); j++) {
+            int c = wordB.charAt(j) & 127;
+            if(counts[c] > 0) {
+                counts[c]--;
+                shared++;
+            } else if(((c < 64 ? presentLow : presentHigh) & (1L << c)) == 0) {
+                double deletion = positional ? deletionCostB(wordB, j) : minDelB;
+                absent++;
+                absentCost += Math.min(deletion, sub);
+                absentShare += Math.min(deletion, sub / 2);
+            }
+        }
+        int leftA = wordA.length() - shared;
+        int otherLeftB = wordB.length() - shared - absent;
+        double boundA = leftA * Math.min(delA, sub);
+        double boundB = absentCost + otherLeftB * Math.min(minDelB, sub);
+        double boundShared = leftA * Math.min(delA, sub / 2) + absentShare + otherLeftB * Math.min(minDelB, sub / 2);
+        return Math.max(boundShared, Math.max(boundA, boundB));
+    }
+
+    /**
+     * Penalty for deleting the character at index j of wordB (as charged by distance())
+     */
+    private double deletionCostB(String wordB, int j) {
+        return deletionCostB(j == 0, j == 0 ? 0 : wordB.charAt(j - 1), wordB.charAt(j));
+    }
+
+    private double deletionCostB(boolean initial, char before, char c) {
+        if(initial) {
+            return delBInitial;
+        } else if(isBreaking(before) && !isBreaking(c)) {
+            return delBWordInitial;
+        }
+        return delB;
+    }
+
+    private static boolean isBreaking(char c) {
+        return c < 64 ? (BREAKING_LOW & 1L << c) != 0 : c < 128 && (BREAKING_HIGH & 1L << c) != 0;
+    }
+
+    private static boolean isSubsequence(String sub, String of) {
+        int i = 0;
+        for(int j=0; j<of.length() && i<sub.length(); j++) {
+            if(sub.charAt(i) == of.charAt(j)) i++;
+        }
+        return i == sub.length();
     }
 
     public double distance(Phrase wordA, Phrase wordB) {
-        return distance(wordA.toString(), wordB.toString());
+        return distance(chars(wordA), chars(wordB), Double.POSITIVE_INFINITY);
     }
 
     /**
@@ -198,27 +389,248 @@ public class OrthographicDistance {
      * @return the distance between them
      */
     public double distance(String wordA, String wordB) {
+        return distance(normalize(wordA).toCharArray(), normalize(wordB).toCharArray(), Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Distance between two words or phrases, for callers that only need to know it if it is at most some maximum.
+     * Much faster than distance() when most pairs are far apart: the dynamic program gives up as soon as every cell
+     * of a row exceeds the maximum, and only fills cells near enough to the diagonal that an alignment through them
+     * could stay within it (see distance(char[], char[], double)).
+     * If some penalty is negative, this is the same as distance().
+     * @param maxCost the largest distance of interest
+     * @return the distance if it is at most maxCost; otherwise some larger value (possibly positive infinity)
+     */
+    public double distanceWithin(Phrase wordA, Phrase wordB, double maxCost) {
+        return distance(chars(wordA), chars(wordB), maxCost);
+    }
+
+    public double distanceWithin(String wordA, String wordB, double maxCost) {
+        return distance(normalize(wordA).toCharArray(), normalize(wordB).toCharArray(), maxCost);
+    }
+
+    /**
+     * @return the characters of a phrase as distance() compares them (not to be modified)
+     */
+    private char[] chars(Phrase phrase) {
+        return caseSensitive ? phrase.toString().toCharArray() : phrase.lowerCaseChars();
+    }
 
-        if(!caseSensitive) {
-            wordA = wordA.toLowerCase();
-            wordB = wordB.toLowerCase();
+    /**
+     * shortestPermutedDistance(), for callers that only need to know it if it is at most some maximum
+     * (the unpermuted phrases are aligned with distanceWithin(), and permutations are cut off by the best distance
+     * found so far as well as by the maximum)
+     * @param maxCost the largest distance of interest
+     * @return the distance if it is at most maxCost; otherwise some larger value (possibly positive infinity)
+     */
+    public double shortestPermutedDistanceWithin(Phrase phraseA, Phrase phraseB, Double permutationPenalty, double maxCost) {
+        double best = distanceWithin(phraseA, phraseB, maxCost);
+        if(permutationPenalty == null) {
+            return best;
         }
+        double permuted = shortestMustPermute(phraseA, phraseB, Math.min(best, maxCost) - permutationPenalty);
+        return Math.min(best, permuted + permutationPenalty);
+    }
 
-        int m = wordA.length();
-        int n = wordB.length();
-        double[][] matrix = new double[m+1][n+1];
+    /**
+     * Return the shortest possible distance between two Phrases when permuting the shorter of them.
+     * Does NOT test the distance between both unpermuted phrases--
+     *      this is so that a penalty can be applied just to the permutations
+     * @param maxCost the largest distance of interest
+     * @return the shortest distance (as defined by this object) for a permutation of these words if it is at most
+     *         maxCost; otherwise some larger value (positive infinity if the shorter phrase has only one word)
+     */
+    private double shortestMustPermute(Phrase phraseA, Phrase phraseB, double maxCost) {
+        boolean permuteA = phraseA.size() < phraseB.size();
+        Phrase permuted = permuteA ? phraseA : phraseB;
+        char[] permutedChars = chars(permuted);
+        char[] fixedChars = chars(permuteA ? phraseB : phraseA);
+        WordPermutations search;
+        if(unitCosts && fixedChars.length > 0) {
+            // the distance is symmetric, so it doesn't matter which phrase is permuted
+            search = new MyersDistance.PermutationSearch(permuted, permutedChars, fixedChars);
+        } else {
+            search = new PermutationSearch(permuted, permutedChars, fixedChars, permuteA);
+        }
+        return search.shortest(maxCost);
+    }
+
+    /**
+     * Permutation search over rows of the dynamic program: whichever phrase is permuted, its characters index the rows,
+     * and the program keeps the last row of each prefix. A prefix is cut off when no cell of its last row
+     * can finish within the limit (counting the deletions needed to use up the rest of both phrases).
+     * Cells are computed exactly as distance() computes them, transposed if the second phrase is permuted.
+     */
+    private class PermutationSearch extends WordPermutations {
+        private final char[] fixed;
+        private final boolean permuteA;
+        private final double[][] rows;
+        // cost of deleting the character before each column (if the fixed phrase is the second)
+        private final double[] deletionCosts;
+        // number of characters and last character of the prefix at each depth
+        private final int[] prefixLengths;
+        private final char[] lastChars;
+
+        PermutationSearch(Phrase permuted, char[] permutedChars, char[] fixed, boolean permuteA) {
+            super(permuted, permutedChars);
+            this.fixed = fixed;
+            this.permuteA = permuteA;
+            int n = fixed.length;
+            rows = new double[size() + 1][n + 1];
+            deletionCosts = new double[n + 1];
+            for(int j=1; j<=n; j++) {
+                deletionCosts[j] = deletionCostB(j == 1, j == 1 ? 0 : fixed[j - 2], fixed[j - 1]);
+            }
+            prefixLengths = new int[size() + 1];
+            lastChars = new char[size() + 1];
+        }
+
+        @Override
+        void start() {
+            double[] row = rows[0];
+            row[0] = 0;
+            for(int j=1; j<row.length; j++) {
+                row[j] = row[j - 1] + (permuteA ? deletionCosts[j] : delA);
+            }
+        }
+
+        @Override
+        boolean extend(int depth, char[] word, int remaining, double limit) {
+            double[] previous = rows[depth];
+            double[] current = rows[depth + 1];
+            int length = prefixLengths[depth];
+            char last = lastChars[depth];
+            for(int c=depth > 0 ? -1 : 0; c<word.length; c++) {
+                char next = c < 0 ? ' ' : word[c];
+                length++;
+                extendRow(previous, current, next, length, last);
+                last = next;
+                previous = current;
+                if(nonNegative && cheapestFinish(current, remaining + word.length - c - 1) > limit + BAND_SLACK) {
+                    return false;
+                }
+            }
+            prefixLengths[depth + 1] = length;
+            lastChars[depth + 1] = last;
+            return true;
+        }
+
+        @Override
+        double distance(int depth) {
+            return rows[depth][fixed.length];
+        }
+
+        /**
+         * Compute the row for character i (from 1) of the permuted phrase, which may be previous itself
+         */
+        private void extendRow(double[] previous, double[] current, char c, int i, char before) {
+            double deletion = permuteA ? delA : deletionCostB(i == 1, before, c);
+            double diagonal = previous[0];
+            current[0] = previous[0] + deletion;
+            for(int j=1; j<current.length; j++) {
+                double min = Double.MAX_VALUE;
+                double diagScore = c == fixed[j - 1] ? diagonal + (i == 1 && j == 1 ? initialMatch : match) : diagonal + sub;
+                if(diagScore < min)
+                    min = diagScore;
+                diagonal = previous[j];
+                // from the same column of the previous row, then from the previous column of this row
+                double downScore = previous[j] + deletion;
+                if(downScore < min)
+                    min = downScore;
+                double rightScore = current[j - 1] + (permuteA ? deletionCosts[j] : delA);
+                if(rightScore < min)
+                    min = rightScore;
+                current[j] = min;
+            }
+        }
+
+        /**
+         * @param remaining number of characters of the permuted phrase still to come
+         * @return the least that any alignment through the row could cost
+         */
+        private double cheapestFinish(double[] row, int remaining) {
+            double min = Double.POSITIVE_INFINITY;
+            for(int j=0; j<row.length; j++) {
+                int extra = remaining - (row.length - 1 - j);
+                double finish = extra > 0 ? extra * (permuteA ? delA : minDelB) : -extra * (permuteA ? minDelB : delA);
+                min = Math.min(min, row[j] + finish);
+            }
+            return min;
+        }
+    }
+
+    /**
+     * The dynamic program, keeping only two rows of the matrix (in scratch space reused by each thread).
+     * With a finite maximum (and no negative penalties), cells are cut off in two ways (after Ukkonen):
+     *   the program stops when every cell of a row exceeds the maximum, since no step reduces the distance
+     *   only a band of diagonals is filled: an alignment through cell (i, j) deletes at least |i - j| characters
+     *      from one word to reach it, and as many as its diagonal is off the last cell's to finish from it,
+     *      so diagonals where those deletions alone exceed the maximum are left at infinity.
+     *      The band is narrow when both deletion penalties are positive (as for forNonAbbreviations()),
+     *      and one-sided when deletions from the second word are free (as for abbreviations).
+     * Every alignment within the maximum stays in the band, so a distance within it is exact.
+     * Unit costs (as for forNonAbbreviations()) are computed bit-parallel instead (see MyersDistance),
+     * and other integer costs (as for forAbbreviations()) in int rows (see integerDistance()).
+     * @return the distance if it is at most maxCost; otherwise some larger value (possibly positive infinity)
+     */
+    private double distance(char[] wordA, char[] wordB, double maxCost) {
+
+        if(unitCosts) {
+            return MyersDistance.distance(wordA, wordB, maxCost);
+        }
+        int m = wordA.length;
+        int n = wordB.length;
+        // diagonals (j - i) to fill
+        int bandLow = -m;
+        int bandHigh = n;
+        if(nonNegative && maxCost < Double.POSITIVE_INFINITY) {
+            double limit = maxCost + BAND_SLACK;
+            bandLow = n + 1;
+            bandHigh = -m - 1;
+            for(int k=-m; k<=n; k++) {
+                if(diagonalCost(k, n - m) <= limit) {
+                    bandLow = Math.min(bandLow, k);
+                    bandHigh = k;
+                }
+            }
+            // the first and last cells are on every alignment
+            if(bandLow > Math.min(0, n - m) || bandHigh < Math.max(0, n - m)) {
+                return Double.POSITIVE_INFINITY;
+            }
+        }
+        if(integerCosts && m + n <= MAX_INTEGER_LENGTH) {
+            return integerDistance(wordA, wordB, maxCost, bandLow, bandHigh);
+        }
+        Scratch scratch = SCRATCH.get().ensure(n + 1);
+        double[] previous = scratch.previous;
+        double[] current = scratch.current;
+        // cost of deleting the character before each column
+        double[] deletionCosts = scratch.deletionCosts;
+        for(int j=1; j<=n; j++) {
+            deletionCosts[j] = deletionCostB(j == 1, j == 1 ? 0 : wordB[j - 2], wordB[j - 1]);
+        }
 
         for(int i=0; i<=m; i++) {
 
-            for(int j=0; j<=n; j++) {
+            int jLow = Math.max(0, i + bandLow);
+            int jHigh = Math.min(n, i + bandHigh);
+            // neighbors of the band read by this row and the next
+            if(jLow > 0) {
+                current[jLow - 1] = Double.POSITIVE_INFINITY;
+            }
+            if(jHigh < n) {
+                current[jHigh + 1] = Double.POSITIVE_INFINITY;
+            }
+            double rowMin = Double.POSITIVE_INFINITY;
+            for(int j=jLow; j<=jHigh; j++) {
 
                 double min=Double.MAX_VALUE;
                 if(i==0 && j==0)
                     min = 0;
 
                 if(i>0 && j>0) {
-                    if(wordA.charAt(i-1) == wordB.charAt(j-1)) {
-                        double diagScore = matrix[i-1][j-1];
+                    if(wordA[i-1] == wordB[j-1]) {
+                        double diagScore = previous[j-1];
                         if(j==1 && i==1) {
                             diagScore += initialMatch;
                         }
@@ -228,32 +640,110 @@ public class OrthographicDistance {
                         if (diagScore < min)
                             min = diagScore;
                     } else {
-                        double diagScore = matrix[i-1][j-1] + sub;
+                        double diagScore = previous[j-1] + sub;
                         if (diagScore < min)
                             min = diagScore;
                     }
                 }
                 if(i>0) {
-                    double downScore = matrix[i-1][j] + delA;
+                    double downScore = previous[j] + delA;
                     if(downScore < min)
                         min = downScore;
                 }
                 if(j>0) {
-                    double rightScore = matrix[i][j-1];
-                    if(j<2) {
-                        rightScore += delBInitial;
-                    } else if(breakingChars.contains(wordB.charAt(j - 2)) && !breakingChars.contains(wordB.charAt(j-1)) ) {
-                        rightScore += delBWordInitial;
-                    } else {
-                        rightScore += delB;
-                    }
+                    double rightScore = current[j-1] + deletionCosts[j];
                     if (rightScore < min)
                         min = rightScore;
                 }
-                matrix[i][j] = min;
+                current[j] = min;
+                rowMin = Math.min(rowMin, min);
+            }
+            if(nonNegative && rowMin > maxCost) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[n];
+    }
+
+    /**
+     * The same dynamic program over the same band, in ints (half the memory of doubles, and cheaper to compare).
+     * Nothing overflows. Each cell starts at INTEGER_INFINITY (Integer.MAX_VALUE / 2) and only takes a smaller candidate,
+     * so no cell exceeds it, and a candidate adds a single penalty of at most MAX_INTEGER_PENALTY to a cell.
+     * A reachable cell's magnitude is at most MAX_INTEGER_PENALTY for each step of its alignment,
+     * and words longer than MAX_INTEGER_LENGTH in total are left to the double program, so those stay far below it too.
+     * Integer penalties add up exactly in doubles as well, so the result is identical.
+     */
+    private double integerDistance(char[] wordA, char[] wordB, double maxCost, int bandLow, int bandHigh) {
+        int m = wordA.length;
+        int n = wordB.length;
+        int matchCost = (int) match;
+        int initialMatchCost = (int) initialMatch;
+        int subCost = (int) sub;
+        int delACost = (int) delA;
+        Scratch scratch = SCRATCH.get().ensureInts(n + 1);
+        int[] previous = scratch.previousInts;
+        int[] current = scratch.currentInts;
+        int[] deletionCosts = scratch.deletionCostInts;
+        for(int j=1; j<=n; j++) {
+            deletionCosts[j] = (int) deletionCostB(j == 1, j == 1 ? 0 : wordB[j - 2], wordB[j - 1]);
+        }
+
+        for(int i=0; i<=m; i++) {
+            int jLow = Math.max(0, i + bandLow);
+            int jHigh = Math.min(n, i + bandHigh);
+            if(jLow > 0) {
+                current[jLow - 1] = INTEGER_INFINITY;
+            }
+            if(jHigh < n) {
+                current[jHigh + 1] = INTEGER_INFINITY;
+            }
+            int rowMin = INTEGER_INFINITY;
+            for(int j=jLow; j<=jHigh; j++) {
+                int min = INTEGER_INFINITY;
+                if(i == 0 && j == 0)
+                    min = 0;
+                if(i > 0 && j > 0) {
+                    int diagScore = previous[j-1] + (wordA[i-1] != wordB[j-1] ? subCost
+                            : i == 1 && j == 1 ? initialMatchCost : matchCost);
+                    if(diagScore < min)
+                        min = diagScore;
+                }
+                if(i > 0) {
+                    int downScore = previous[j] + delACost;
+                    if(downScore < min)
+                        min = downScore;
+                }
+                if(j > 0) {
+                    int rightScore = current[j-1] + deletionCosts[j];
+                    if(rightScore < min)
+                        min = rightScore;
+                }
+                current[j] = min;
+                rowMin = Math.min(rowMin, min);
             }
+            if(nonNegative && rowMin > maxCost) {
+                return Double.POSITIVE_INFINITY;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
         }
-        return matrix[m][n];
+        return previous[n] >= INTEGER_INFINITY ? Double.POSITIVE_INFINITY : previous[n];
+    }
+
+    /**
+     * @param diagonal j - i of a cell
+     * @param lastDiagonal j - i of the last cell
+     * @return the least that the deletions needed to reach a cell on a diagonal and go on to the last cell cost
+     */
+    private double diagonalCost(int diagonal, int lastDiagonal) {
+        double reach = diagonal < 0 ? -diagonal * delA : diagonal * minDelB;
+        int remaining = diagonal - lastDiagonal;
+        double finish = remaining > 0 ? remaining * delA : -remaining * minDelB;
+        return reach + finish;
     }
 
 }
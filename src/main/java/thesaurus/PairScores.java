@@ -0,0 +1,241 @@
+package thesaurus;
+
+import phrases.Phrase;
+import textprocessing.TextProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Raw scores (semantic similarity, normalized orthographic and abbreviation distances) of every pair that passes
+ * a set of loose thresholds, so that thesauri for stricter thresholds or other weightings can be made from them
+ * in seconds, without finding and scoring pairs again (see ThesaurusMaker.buildPairScores()).
+ *
+ * Pairs are kept in columns (headword indices, candidate indices, and each score), in the order a build adds them,
+ * and saved the same way: a header (magic number, version, case sensitivity, text processor, the loose thresholds),
+ * the phrase table, the number of pairs, then each column in turn.
+ * A thesaurus made from these scores is the same as one built with its parameters, as long as they are no looser
+ * than the thresholds these scores were found with.
+ */
+public class PairScores {
+
+    private static final Logger LOGGER = Logger.getLogger(PairScores.class.getName());
+
+    private static final int MAGIC = 0x50414952;
+    private static final int VERSION = 1;
+
+    private final List<Phrase> phrases;
+    private final boolean caseSensitive;
+    private final TextProcessor textProcessor;
+    private final double semanticMinimum;
+    private final double orthoMaximum;
+    private final double abbrMaximum;
+
+    private int size;
+    private int[] headwords;
+    private int[] candidates;
+    private double[] semantic;
+    private double[] ortho;
+    private double[] abbr;
+
+    /**
+     * @param phrases phrases by index (the headwords and candidates of pairs are indices into this list)
+     * @param semanticMinimum the semantic threshold the pairs were found with
+     * @param orthoMaximum the orthographic threshold the pairs were found with
+     * @param abbrMaximum the abbreviation threshold the pairs were found with
+     * @param capacity expected number of pairs
+     */
+    PairScores(List<Phrase> phrases, boolean caseSensitive, TextProcessor textProcessor,
+               double semanticMinimum, double orthoMaximum, double abbrMaximum, int capacity) {
+        this.phrases = phrases;
+        this.caseSensitive = caseSensitive;
+        this.textProcessor = textProcessor;
+        this.semanticMinimum = semanticMinimum;
+        this.orthoMaximum = orthoMaximum;
+        this.abbrMaximum = abbrMaximum;
+        capacity = Math.max(capacity, 16);
+        headwords = new int[capacity];
+        candidates = new int[capacity];
+        semantic = new double[capacity];
+        ortho = new double[capacity];
+        abbr = new double[capacity];
+    }
+
+    /**
+     * Add the scores of one pair (pairs should be added in the order a build adds entries)
+     */
+    void add(int headword, int candidate, double semanticSimilarity, double orthoDistance, double abbrDistance) {
+        if(size == headwords.length) {
+            int capacity = size * 2;
+            headwords = Arrays.copyOf(headwords, capacity);
+            candidates = Arrays.copyOf(candidates, capacity);
+            semantic = Arrays.copyOf(semantic, capacity);
+            ortho = Arrays.copyOf(ortho, capacity);
+            abbr = Arrays.copyOf(abbr, capacity);
+        }
+        headwords[size] = headword;
+        candidates[size] = candidate;
+        semantic[size] = semanticSimilarity;
+        ortho[size] = orthoDistance;
+        abbr[size] = abbrDistance;
+        size++;
+    }
+
+    /**
+     * @return the number of pairs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Make the thesaurus that ThesaurusMaker would build with a set of parameters
+     * @param overallThreshold minimum overall score, or null for none
+     */
+    public Thesaurus toThesaurus(double semanticMinimum, double orthoMaximum, double abbrMaximum,
+                                 double semanticOrthoRatio, Double overallThreshold) {
+        checkThresholds(semanticMinimum, orthoMaximum, abbrMaximum);
+        Thesaurus thesaurus = new Thesaurus(caseSensitive, textProcessor);
+        double minScore = overallThreshold == null ? -Double.MAX_VALUE : overallThreshold;
+        for(int p=0; p<size; p++) {
+            if(!passes(p, semanticMinimum, orthoMaximum, abbrMaximum)) continue;
+            double score = ThesaurusMaker.overallScore(semanticOrthoRatio, semantic[p], ortho[p], abbr[p]);
+            if(score >= minScore) {
+                thesaurus.addPairing(new Thesaurus.FullEntry(phrases.get(headwords[p]), phrases.get(candidates[p]),
+                        score, semantic[p], ortho[p], abbr[p]));
+            }
+        }
+        return thesaurus;
+    }
+
+    /**
+     * Summarize the thesaurus that ThesaurusMaker would build with a set of parameters, without making it
+     * @param overallThreshold minimum overall score, or null for none
+     */
+    public Summary summarize(double semanticMinimum, double orthoMaximum, double abbrMaximum,
+                             double semanticOrthoRatio, Double overallThreshold) {
+        checkThresholds(semanticMinimum, orthoMaximum, abbrMaximum);
+        double minScore = overallThreshold == null ? -Double.MAX_VALUE : overallThreshold;
+        Summary summary = new Summary();
+        int lastHeadword = -1;
+        for(int p=0; p<size; p++) {
+            if(!passes(p, semanticMinimum, orthoMaximum, abbrMaximum)) continue;
+            double score = ThesaurusMaker.overallScore(semanticOrthoRatio, semantic[p], ortho[p], abbr[p]);
+            if(score >= minScore) {
+                summary.entries++;
+                summary.totalScore += score;
+                if(headwords[p] != lastHeadword) {
+                    summary.headwords++;
+                    lastHeadword = headwords[p];
+                }
+                if(abbr[p] < ortho[p]) {
+                    summary.abbreviations++;
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Counts of what a thesaurus would contain
+     */
+    public static class Summary {
+        public int headwords;
+        public long entries;
+        // entries whose abbreviation distance is lower than their orthographic distance
+        public long abbreviations;
+        public double totalScore;
+
+        @Override
+        public String toString() {
+            return headwords + " headwords\t" + entries + " entries\t"
+                    + String.format("%.2f", headwords == 0 ? 0 : (double) entries / headwords) + " per headword\t"
+                    + abbreviations + " abbreviation entries\t"
+                    + String.format("%.4f", entries == 0 ? 0 : totalScore / entries) + " mean overall score";
+        }
+    }
+
+    // the same tests ThesaurusMaker applies
+    private boolean passes(int p, double semanticMinimum, double orthoMaximum, double abbrMaximum) {
+        return semantic[p] >= semanticMinimum && (ortho[p] <= orthoMaximum || abbr[p] <= abbrMaximum);
+    }
+
+    private void checkThresholds(double semanticMinimum, double orthoMaximum, double abbrMaximum) {
+        if(semanticMinimum < this.semanticMinimum || orthoMaximum > this.orthoMaximum || abbrMaximum > this.abbrMaximum) {
+            LOGGER.warning("Thresholds " + semanticMinimum + ", " + orthoMaximum + ", " + abbrMaximum
+                    + " are looser than those the pair scores were found with (" + this.semanticMinimum + ", "
+                    + this.orthoMaximum + ", " + this.abbrMaximum + "); some entries will be missing");
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        LOGGER.info("Saving scores of " + size + " pairs to " + file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(caseSensitive);
+            out.writeUTF(textProcessor.getClass().getName());
+            out.writeDouble(semanticMinimum);
+            out.writeDouble(orthoMaximum);
+            out.writeDouble(abbrMaximum);
+            out.writeInt(phrases.size());
+            for(Phrase phrase : phrases) {
+                out.writeUTF(phrase.toString());
+            }
+            out.writeInt(size);
+            for(int p=0; p<size; p++) out.writeInt(headwords[p]);
+            for(int p=0; p<size; p++) out.writeInt(candidates[p]);
+            for(int p=0; p<size; p++) out.writeDouble(semantic[p]);
+            for(int p=0; p<size; p++) out.writeDouble(ortho[p]);
+            for(int p=0; p<size; p++) out.writeDouble(abbr[p]);
+        }
+    }
+
+    public static PairScores load(Path file) throws IOException {
+        LOGGER.info("Loading pair scores from " + file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a pair scores file");
+            }
+            int version = in.readInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported pair scores version " + version + " in " + file);
+            }
+            boolean caseSensitive = in.readBoolean();
+            TextProcessor textProcessor;
+            String className = in.readUTF();
+            try {
+                textProcessor = (TextProcessor) Class.forName(className).getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException e) {
+                throw new IOException("Couldn't load text processor class " + className, e);
+            }
+            double semanticMinimum = in.readDouble();
+            double orthoMaximum = in.readDouble();
+            double abbrMaximum = in.readDouble();
+            int nPhrases = in.readInt();
+            List<Phrase> phrases = new ArrayList<>(nPhrases);
+            for(int i=0; i<nPhrases; i++) {
+                phrases.add(new Phrase(in.readUTF()));
+            }
+            int size = in.readInt();
+            PairScores scores = new PairScores(phrases, caseSensitive, textProcessor,
+                    semanticMinimum, orthoMaximum, abbrMaximum, size);
+            scores.size = size;
+            for(int p=0; p<size; p++) scores.headwords[p] = in.readInt();
+            for(int p=0; p<size; p++) scores.candidates[p] = in.readInt();
+            for(int p=0; p<size; p++) scores.semantic[p] = in.readDouble();
+            for(int p=0; p<size; p++) scores.ortho[p] = in.readDouble();
+            for(int p=0; p<size; p++) scores.abbr[p] = in.readDouble();
+            return scores;
+        }
+    }
+}
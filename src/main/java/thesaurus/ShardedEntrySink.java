@@ -0,0 +1,85 @@
+package thesaurus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Collects the entries found for each headword from many threads at once, then hands them over
+ * in headword order, so the result doesn't depend on which thread finished first.
+ * Headwords are identified by index and split into contiguous ranges (shards), each with its own lock;
+ * threads working on different parts of the vocabulary rarely contend.
+ *
+ * Entries for a headword may arrive in several groups, each with a key (such as the index of the candidate
+ * or headword they were found from); groups are drained in ascending key order.
+ */
+class ShardedEntrySink {
+
+    private static final int N_SHARDS = 64;
+
+    private final int shardSize;
+    private final Shard[] shards;
+
+    private static class Shard {
+        // headword index and key of each group of entries, in the order they were added
+        private final List<long[]> headwordsAndKeys = new ArrayList<>();
+        private final List<List<Thesaurus.FullEntry>> entries = new ArrayList<>();
+    }
+
+    /**
+     * @param nHeadwords headword indices will be in [0, nHeadwords)
+     */
+    ShardedEntrySink(int nHeadwords) {
+        shardSize = Math.max(1, (nHeadwords + N_SHARDS - 1) / N_SHARDS);
+        shards = new Shard[N_SHARDS];
+        for(int s=0; s<N_SHARDS; s++) {
+            shards[s] = new Shard();
+        }
+    }
+
+    /**
+     * Add a group of entries for one headword
+     * @param headword index of the headword
+     * @param key position of this group among the headword's groups (groups with equal keys may drain in any order)
+     * @param entries the entries, in the order they should be added (ignored if empty)
+     */
+    void add(int headword, int key, List<Thesaurus.FullEntry> entries) {
+        if(entries.isEmpty()) return;
+        Shard shard = shards[Math.min(headword / shardSize, N_SHARDS - 1)];
+        synchronized(shard) {
+            shard.headwordsAndKeys.add(new long[] {headword, key});
+            shard.entries.add(entries);
+        }
+    }
+
+    /**
+     * Remove every collected entry, in ascending headword index order and then ascending key order.
+     * Call once all threads are done
+     * @return the entries for each headword that has any
+     */
+    SortedMap<Integer, List<Thesaurus.FullEntry>> drain() {
+        SortedMap<Integer, List<Thesaurus.FullEntry>> drained = new TreeMap<>();
+        for(Shard shard : shards) {
+            synchronized(shard) {
+                Integer[] order = new Integer[shard.entries.size()];
+                for(int i=0; i<order.length; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, (x, y) -> {
+                    long[] a = shard.headwordsAndKeys.get(x);
+                    long[] b = shard.headwordsAndKeys.get(y);
+                    return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+                });
+                for(int i : order) {
+                    int headword = (int) shard.headwordsAndKeys.get(i)[0];
+                    drained.computeIfAbsent(headword, k -> new ArrayList<>()).addAll(shard.entries.get(i));
+                }
+                shard.headwordsAndKeys.clear();
+                shard.entries.clear();
+            }
+        }
+        return drained;
+    }
+}
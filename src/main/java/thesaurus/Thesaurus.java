@@ -134,6 +134,15 @@ public class Thesaurus implements Iterable<Phrase> {
         return thesaurus.containsKey(lookupPhrase) ? thesaurus.get(lookupPhrase) : new ArrayList<FullEntry>();
     }
 
+    /**
+     * @param phrase a headword exactly as it was added (no processing or case folding)
+     * @return its entries, or an empty list if it isn't a headword
+     */
+    List<FullEntry> entries(Phrase phrase) {
+        List<FullEntry> entries = thesaurus.get(phrase);
+        return entries == null ? new ArrayList<>() : entries;
+    }
+
     /**
      * Return the pairing of the two current phrases as a FullEntry (which will include scores).
      * @param p1 one phrase
@@ -167,32 +176,76 @@ public class Thesaurus implements Iterable<Phrase> {
 
         // sort all entries by overallScore before saving
         for(List<FullEntry> list : thesaurus.values()) {
-            list.sort(new Comparator<FullEntry>() {
-                @Override
-                public int compare(FullEntry o1, FullEntry o2) {
-                    return ((Double)o2.overallScore).compareTo(o1.overallScore);
-                }
-            });
+            list.sort(BY_OVERALL_SCORE);
+        }
+
+        writeHeader(writer, caseSensitive, textProcessor);
+        for(Map.Entry<Phrase, List<FullEntry>> e : thesaurus.entrySet()) {
+            writer.write(formatRow(e.getKey(), e.getValue()) + "\n");
+        }
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Best entries first, as they are saved
+     */
+    static final Comparator<FullEntry> BY_OVERALL_SCORE = new Comparator<FullEntry>() {
+        @Override
+        public int compare(FullEntry o1, FullEntry o2) {
+            return ((Double)o2.overallScore).compareTo(o1.overallScore);
         }
+    };
 
+    /**
+     * Write the lines that start a saved thesaurus, before any rows
+     */
+    static void writeHeader(Writer writer, boolean caseSensitive, TextProcessor textProcessor) throws IOException {
         if(caseSensitive) writer.write(IS_CASE_SENSITIVE_STRING);
         else writer.write(NOT_CASE_SENSITIVE_STRING);
         writer.write("\n");
         writer.write(textProcessor.getClass().toString().substring(6));
         writer.write("\n");
-        for(Map.Entry<Phrase, List<FullEntry>> e : thesaurus.entrySet()) {
-            Phrase headPhrase = e.getKey();
-            List<FullEntry> equivs = e.getValue();
-            String writeln = headPhrase.toString();
-            for(FullEntry equiv : equivs) {
-                writeln += "\t";
-                writeln += equiv.p2.toString();
-                writeln += "\t" + equiv.overallScore + ";" + equiv.semanticSimilarity + ";" + equiv.orthoDistance + ";" + equiv.abbrDistance;
-            }
-            writer.write(writeln + "\n");
+    }
+
+    /**
+     * Format a headword and its entries as one line of a saved thesaurus (without the line break)
+     * @param headword the headword
+     * @param entries its entries, in the order to write them
+     * @return the line
+     */
+    static String formatRow(Phrase headword, List<FullEntry> entries) {
+        StringBuilder row = new StringBuilder(headword.toString());
+        for(FullEntry equiv : entries) {
+            row.append("\t").append(equiv.p2.toString());
+            row.append("\t").append(equiv.overallScore).append(";").append(equiv.semanticSimilarity)
+                    .append(";").append(equiv.orthoDistance).append(";").append(equiv.abbrDistance);
         }
-        writer.flush();
-        writer.close();
+        return row.toString();
+    }
+
+    /**
+     * Parse one line of a saved thesaurus, as written by formatRow()
+     * @param line the line
+     * @return the entries on that line (empty if it has none)
+     */
+    static List<FullEntry> parseRow(String line) {
+        List<FullEntry> entries = new ArrayList<>();
+        String[] terms = line.split("\\t");
+        if(terms.length < 2) return entries;
+        Phrase headword = new Phrase(terms[0]);
+        for(int i=1; i<terms.length; i+=2) {
+            Phrase phrase = new Phrase(terms[i]);
+            String[] scores = terms[i+1].split(";");
+            entries.add(new FullEntry(
+                    headword,
+                    phrase,
+                    Double.parseDouble(scores[0]),
+                    Double.parseDouble(scores[1]),
+                    Double.parseDouble(scores[2]),
+                    Double.parseDouble(scores[3]) ));
+        }
+        return entries;
     }
 
     /**
@@ -220,19 +273,8 @@ public class Thesaurus implements Iterable<Phrase> {
         Thesaurus thesaurus = new Thesaurus(caseSensitive, textProcessor);
         String line;
         while((line = reader.readLine()) != null) {
-            String[] terms = line.split("\\t");
-            if(terms.length < 2) continue;
-            Phrase headword = new Phrase(terms[0]);
-            for(int i=1; i<terms.length; i+=2) {
-                Phrase phrase = new Phrase(terms[i]);
-                String[] scores = terms[i+1].split(";");
-                thesaurus.addPairing(new FullEntry(
-                        headword,
-                        phrase,
-                        Double.parseDouble(scores[0]),
-                        Double.parseDouble(scores[1]),
-                        Double.parseDouble(scores[2]),
-                        Double.parseDouble(scores[3]) ));
+            for(FullEntry entry : parseRow(line)) {
+                thesaurus.addPairing(entry);
             }
         }
         return thesaurus;
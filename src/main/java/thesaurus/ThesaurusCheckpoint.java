@@ -0,0 +1,232 @@
+package thesaurus;
+
+import phrases.Phrase;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+import java.util.logging.Logger;
+
+/**
+ * Durable partial output of a thesaurus build, so that a build that stops partway through can be resumed.
+ *
+ * Three files are kept:
+ *   rows: one line per finished headword, in the format of a saved thesaurus (without its header),
+ *         in the order headwords were finished
+ *   pending (rows file + ".pending"): entries already found for headwords that weren't finished yet
+ *         (only when scoring symmetric pairs), one per line, in the order they were found
+ *   manifest (rows file + ".manifest"): the index of the next headword to process, how much of the other two files
+ *         is complete, and a hash of the build parameters and embeddings
+ * Rows are appended as headwords finish. commit() forces both files to disk before atomically replacing the manifest,
+ * so the manifest always describes complete output; anything written after the last commit is discarded on resume.
+ */
+class ThesaurusCheckpoint {
+
+    private static final Logger LOGGER = Logger.getLogger(ThesaurusCheckpoint.class.getName());
+
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final int VERSION = 1;
+
+    private final Path rowsFile;
+    private final Path pendingFile;
+    private final Path manifestFile;
+    private final long hash;
+    private final FileChannel rowsChannel;
+    private final FileChannel pendingChannel;
+    private final Writer rowsWriter;
+    private final Writer pendingWriter;
+    private final int nextHeadword;
+
+    /**
+     * Open the checkpoint files for a build, picking up where an earlier build with the same hash stopped
+     * (or starting over if there was none, or it had different parameters)
+     * @param rowsFile path of the rows file; the other files are named after it
+     * @param hash hash of everything that determines the build's output
+     * @throws IOException
+     */
+    ThesaurusCheckpoint(Path rowsFile, long hash) throws IOException {
+        this.rowsFile = rowsFile;
+        this.pendingFile = Paths.get(rowsFile + PENDING_SUFFIX);
+        this.manifestFile = Paths.get(rowsFile + MANIFEST_SUFFIX);
+        this.hash = hash;
+
+        Properties manifest = readManifest();
+        long rowsBytes = 0;
+        long pendingBytes = 0;
+        int next = 0;
+        if(manifest != null) {
+            next = Integer.parseInt(manifest.getProperty("nextHeadword"));
+            rowsBytes = Long.parseLong(manifest.getProperty("rowsBytes"));
+            pendingBytes = Long.parseLong(manifest.getProperty("pendingBytes"));
+        }
+        rowsChannel = openTruncated(rowsFile, rowsBytes);
+        pendingChannel = openTruncated(pendingFile, pendingBytes);
+        if(rowsChannel.size() != rowsBytes || pendingChannel.size() != pendingBytes) {
+            LOGGER.warning("Checkpoint files " + rowsFile + " are shorter than their manifest says; starting over");
+            rowsChannel.truncate(0);
+            pendingChannel.truncate(0);
+            next = 0;
+        }
+        nextHeadword = next;
+        rowsWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(rowsChannel), StandardCharsets.UTF_8), 1 << 16);
+        pendingWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(pendingChannel), StandardCharsets.UTF_8), 1 << 16);
+        if(nextHeadword > 0) {
+            LOGGER.info("Resuming thesaurus build from checkpoint " + rowsFile + " at headword " + nextHeadword);
+        }
+    }
+
+    /**
+     * @return the manifest, or null if there is no usable manifest for a build with this hash
+     */
+    private Properties readManifest() throws IOException {
+        if(!Files.exists(manifestFile)) return null;
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(manifestFile)) {
+            manifest.load(in);
+        }
+        if(!String.valueOf(VERSION).equals(manifest.getProperty("version"))
+                || !String.valueOf(hash).equals(manifest.getProperty("hash"))) {
+            LOGGER.info("Checkpoint " + rowsFile + " is from a build with different parameters or embeddings; starting over");
+            return null;
+        }
+        return manifest;
+    }
+
+    private static FileChannel openTruncated(Path file, long size) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() > size) {
+            channel.truncate(size);
+        }
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * @return index of the first headword not yet finished
+     */
+    int getNextHeadword() {
+        return nextHeadword;
+    }
+
+    /**
+     * Load the output of the earlier build
+     * @param rows receives each finished headword and its entries, in the order they were finished
+     * @param pending map to add entries for unfinished headwords to, by headword index
+     * @param indexOf gives the index of a headword
+     * @throws IOException
+     */
+    void restore(BiConsumer<Phrase, List<Thesaurus.FullEntry>> rows, Map<Integer, List<Thesaurus.FullEntry>> pending,
+                 ToIntFunction<Phrase> indexOf) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(rowsFile, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                List<Thesaurus.FullEntry> entries = Thesaurus.parseRow(line);
+                if(!entries.isEmpty()) {
+                    rows.accept(entries.get(0).p1, entries);
+                }
+            }
+        }
+        try (BufferedReader reader = Files.newBufferedReader(pendingFile, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                for(Thesaurus.FullEntry entry : Thesaurus.parseRow(line)) {
+                    int headword = indexOf.applyAsInt(entry.p1);
+                    // entries for headwords finished since they were written are already in the rows
+                    if(headword >= nextHeadword) {
+                        pending.computeIfAbsent(headword, k -> new ArrayList<>()).add(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Append the entries of a finished headword
+     */
+    void writeRow(Phrase headword, List<Thesaurus.FullEntry> entries) {
+        if(entries.isEmpty()) return;
+        try {
+            rowsWriter.write(Thesaurus.formatRow(headword, entries));
+            rowsWriter.write("\n");
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Append an entry for a headword that isn't finished yet
+     */
+    void writePending(Thesaurus.FullEntry entry) {
+        try {
+            pendingWriter.write(Thesaurus.formatRow(entry.p1, Collections.singletonList(entry)));
+            pendingWriter.write("\n");
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Make everything written so far durable, and record that all headwords before an index are finished
+     * @param nextHeadword index of the first headword not yet finished
+     */
+    void commit(int nextHeadword) {
+        try {
+            rowsWriter.flush();
+            pendingWriter.flush();
+            rowsChannel.force(true);
+            pendingChannel.force(true);
+            Properties manifest = new Properties();
+            manifest.setProperty("version", String.valueOf(VERSION));
+            manifest.setProperty("hash", String.valueOf(hash));
+            manifest.setProperty("nextHeadword", String.valueOf(nextHeadword));
+            manifest.setProperty("rowsBytes", String.valueOf(rowsChannel.size()));
+            manifest.setProperty("pendingBytes", String.valueOf(pendingChannel.size()));
+            Path temp = Paths.get(manifestFile + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                manifest.store(out, "thesaurus build checkpoint");
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void close() throws IOException {
+        rowsWriter.close();
+        pendingWriter.close();
+    }
+
+    /**
+     * Delete all checkpoint files for a rows file (such as once the finished thesaurus has been saved)
+     */
+    static void delete(Path rowsFile) throws IOException {
+        Files.deleteIfExists(Paths.get(rowsFile + MANIFEST_SUFFIX));
+        Files.deleteIfExists(rowsFile);
+        Files.deleteIfExists(Paths.get(rowsFile + PENDING_SUFFIX));
+    }
+}
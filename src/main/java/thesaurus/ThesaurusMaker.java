@@ -3,11 +3,24 @@ package thesaurus;
 import io.Word2vecReader;
 import phrases.Phrase;
 import semantics.Embeddings;
+import semantics.NeighborIndex;
+import semantics.Neighbors;
+import semantics.QuantizedVectors;
 import semantics.WordEmbedding;
 import textprocessing.ModerateProcessor;
 import textprocessing.TextProcessor;
+import util.Threading;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -24,6 +37,12 @@ public class ThesaurusMaker {
     private final static double ORTHO_DEFAULT = .4;
     private final static double ABBR_DEFAULT = .5;
     private final static double WEIGHT_RATIO_DEFAULT = 1;
+    // headwords found in parallel before their entries are handed over (bounds the entries held at once)
+    private final static int PARALLEL_SEGMENT = 10000;
+    // slack given to distance bounds and cutoffs, so that rounding never rejects a pair that would pass
+    final static double BOUND_SLACK = 1e-9;
+    // headwords whose matches are found both ways when choosing the candidate order automatically
+    private final static int ORDER_SAMPLE = 64;
 
     private final Embeddings emb;
     private final List<Phrase> embPhrases;
@@ -40,6 +59,32 @@ public class ThesaurusMaker {
     private final boolean caseSensitive;
     private final Double permutationPenalty;
     private final double semanticOrthoRatio;
+    private final int semanticBatchSize;
+    private final boolean parallelHeadwords;
+    private final boolean symmetricPairs;
+    private final Path checkpointFile;
+    private final int checkpointInterval;
+    // this build finds entries only for headwords in shard number `shard` of nShards (all headwords if nShards is 0)
+    private final int shard;
+    private final int nShards;
+    private final boolean shardByHash;
+    private final NeighborIndex neighborIndex;
+    private final CandidateOrder candidateOrder;
+    // set when a build finds candidates orthographically first
+    private CandidateIndex candidateIndex;
+
+    /**
+     * How to find the pairs to score for each headword
+     */
+    public enum CandidateOrder {
+        // scan the embeddings for semantic matches, then compute the distances to each
+        SEMANTIC,
+        // find the phrases that could pass the orthographic or abbreviation threshold with an index of their characters
+        // (see CandidateIndex), then compute the semantic similarity of each; best when the semantic threshold is low
+        ORTHOGRAPHIC,
+        // find and score the matches of a sample of headwords both ways, and use whichever is faster
+        AUTO
+    }
 
     public static class ThesaurusMakerBuilder {
         private final Embeddings emb;
@@ -51,6 +96,17 @@ public class ThesaurusMaker {
         private boolean caseSensitive;
         private Double permutationPenalty;
         private TextProcessor textProcessor;
+        private int semanticBatchSize = 1;
+        private boolean parallelHeadwords;
+        private boolean symmetricPairs;
+        private Path checkpointFile;
+        private int checkpointInterval;
+        private int shard;
+        private int nShards;
+        private boolean shardByHash;
+        private QuantizedVectors.Mode quantization;
+        private Function<Embeddings, NeighborIndex> indexFactory;
+        private CandidateOrder candidateOrder = CandidateOrder.SEMANTIC;
         public ThesaurusMakerBuilder(Embeddings emb) {
             LOGGER.info("Normalizing all embeddings");
             emb.normalizeAll();
@@ -91,15 +147,113 @@ public class ThesaurusMaker {
             this.permutationPenalty = permutationPenalty;
             return this;
         }
+        /**
+         * Find semantic matches for this many headwords per pass over the embeddings (1 for one pass per headword)
+         */
+        public ThesaurusMakerBuilder setSemanticBatchSize(int semanticBatchSize) {
+            this.semanticBatchSize = Math.max(1, semanticBatchSize);
+            return this;
+        }
+        /**
+         * Process headwords in parallel on a fork-join pool (of Threading.getnThreads() threads), each task doing
+         * the semantic scan, orthographic distances, and scoring for a batch of headwords on a single thread,
+         * rather than processing headwords one at a time with only the semantic scan threaded.
+         * The thesaurus built is the same either way.
+         */
+        public ThesaurusMakerBuilder setParallelHeadwords(boolean parallelHeadwords) {
+            this.parallelHeadwords = parallelHeadwords;
+            return this;
+        }
+        /**
+         * Score each unordered pair of phrases once, from the headword with the lower index, and add entries
+         * in both directions: semantic scans only compare each headword against later phrases,
+         * and distances are computed once per pair (both ortho directions only when permuting phrases with the same
+         * number of words, where the permuted distance is not symmetric).
+         * With an exact scan the thesaurus built is the same as without this; with a neighbor index, a pair is found
+         * only if the index finds it from the lower-indexed phrase.
+         */
+        public ThesaurusMakerBuilder setSymmetricPairs(boolean symmetricPairs) {
+            this.symmetricPairs = symmetricPairs;
+            return this;
+        }
+        /**
+         * Save finished headwords to a file as the thesaurus is built, so that a build that stops partway through
+         * can be resumed by building again with the same parameters and embeddings.
+         * Other files are kept alongside it (the file name plus ".pending" and ".manifest").
+         * @param checkpointFile file to save finished headwords to, or null for no checkpoints
+         * @param interval number of headwords between checkpoints
+         */
+        public ThesaurusMakerBuilder setCheckpoint(Path checkpointFile, int interval) {
+            this.checkpointFile = checkpointFile;
+            this.checkpointInterval = Math.max(1, interval);
+            return this;
+        }
+        /**
+         * Build only one shard of the thesaurus: the rows of the headwords assigned to it (see ThesaurusShards).
+         * buildThesaurus(OutputStream) then writes a shard file; ThesaurusShards.merge() combines the files of all
+         * shards into the same thesaurus as a single build. Symmetric pairs can't be scored in a shard,
+         * since a pair's entries belong to the rows of two headwords that may be in different shards.
+         * @param shard number of this shard, from 0
+         * @param nShards number of shards
+         * @param byHash assign headwords to shards by a hash of their index rather than by contiguous ranges of indices
+         */
+        public ThesaurusMakerBuilder setShard(int shard, int nShards, boolean byHash) {
+            if(nShards < 1 || shard < 0 || shard >= nShards) {
+                throw new IllegalArgumentException("No shard " + shard + " of " + nShards);
+            }
+            this.shard = shard;
+            this.nShards = nShards;
+            this.shardByHash = byHash;
+            return this;
+        }
+        /**
+         * Scan quantized copies of the embeddings for semantic matches (null for full precision only).
+         * Matches and their scores are identical either way.
+         */
+        public ThesaurusMakerBuilder setQuantization(QuantizedVectors.Mode quantization) {
+            this.quantization = quantization;
+            return this;
+        }
+        /**
+         * Find semantic matches with an approximate index rather than by scanning all embeddings
+         * @param indexFactory builds (or loads) an index over the embeddings, after they have been filtered;
+         *                     null to scan
+         */
+        public ThesaurusMakerBuilder useNeighborIndex(Function<Embeddings, NeighborIndex> indexFactory) {
+            this.indexFactory = indexFactory;
+            return this;
+        }
+        /**
+         * Find each headword's candidates by semantic similarity first (the default), by orthography first,
+         * or whichever a sample of headwords shows to be faster.
+         * The thesaurus built is the same either way, except that orthography first always compares semantic
+         * similarities exactly, so a neighbor index isn't used (and AUTO chooses semantic order when there is one).
+         */
+        public ThesaurusMakerBuilder setCandidateOrder(CandidateOrder candidateOrder) {
+            this.candidateOrder = candidateOrder == null ? CandidateOrder.SEMANTIC : candidateOrder;
+            return this;
+        }
     }
 
 
     private ThesaurusMaker(ThesaurusMakerBuilder builder) {
 
         emb = builder.emb;
-        embPhrases = emb.getLexicon();
         caseSensitive = builder.caseSensitive;
         permutationPenalty = builder.permutationPenalty;
+        semanticBatchSize = builder.semanticBatchSize;
+        parallelHeadwords = builder.parallelHeadwords;
+        checkpointFile = builder.checkpointFile;
+        checkpointInterval = builder.checkpointInterval;
+        shard = builder.shard;
+        nShards = builder.nShards;
+        shardByHash = builder.shardByHash;
+        if(builder.symmetricPairs && nShards > 0) {
+            LOGGER.warning("Symmetric pairs can't be scored when building one shard; scoring each headword separately");
+            symmetricPairs = false;
+        } else {
+            symmetricPairs = builder.symmetricPairs;
+        }
 
         // values that should not be null
         if(builder.semanticThreshold == null) {
@@ -140,14 +294,20 @@ public class ThesaurusMaker {
 
         // Remove phrases that have no letters
         final Pattern hasLetter = Pattern.compile(".*[A-Za-z].*");
-        Iterator<Phrase> phraseIter = emb.iterator();
-        while(phraseIter.hasNext()) {
-            Phrase phrase = phraseIter.next();
+        Set<Phrase> withLetters = new HashSet<>();
+        for(Phrase phrase : emb) {
             Matcher matcher = hasLetter.matcher(phrase.toString());
-            if(!matcher.find()) {
-                phraseIter.remove();
+            if(matcher.find()) {
+                withLetters.add(phrase);
             }
         }
+        emb.filterOn(withLetters);
+        embPhrases = emb.getLexicon();
+        if(builder.quantization != null) {
+            emb.quantize(builder.quantization);
+        }
+        neighborIndex = builder.indexFactory == null ? null : builder.indexFactory.apply(emb);
+        candidateOrder = builder.candidateOrder;
         abbrDistance = OrthographicDistance.forAbbreviations();
         orthoDistance = OrthographicDistance.forNonAbbreviations();
     }
@@ -170,61 +330,706 @@ public class ThesaurusMaker {
 
     public Thesaurus buildThesaurus() {
         Thesaurus thesaurus = new Thesaurus(caseSensitive, textProcessor);
-        LOGGER.info("Finding matches for " + emb.size() + " headwords");
-        int counter = 0;
-        for(Phrase headword : emb.getLexicon()) {
-            counter++;
-            if(textProcessor.containsDummyToken(headword.toString())) continue;
-            if (counter % 1000 == 0) {
-                LOGGER.info(counter + " words processed");
-            }
-            Map<Phrase, Double> equivalents = new HashMap<>();
-            List<Phrase> matches = getSemanticEquivalents(headword);
-            if(matches.size() > 1) {
-                long millis = System.currentTimeMillis();
-                LOGGER.info(matches.size() + " semantic matches found for " + headword);
-                for(Phrase candidatePhrase : matches) {
-                    if (candidatePhrase.equals(headword)
-                            || textProcessor.containsDummyToken(candidatePhrase.toString())
-                            || candidatePhrase.size() == 0
-                            ) continue;
-
-                    // normalize orthoDist to longer phrase length
-                    double orthoDist = orthoDistance.shortestPermutedDistance(headword, candidatePhrase, permutationPenalty);
-                    double normalOrthoDist = orthoDist / Math.max(headword.length(), candidatePhrase.length());
-                    // normalize abbreviation distance to *abbr length* (an asymmetric distance measure, unlike ortho)
-                    double normalAbbrDist = Math.min(
-                            abbrDistance.distance(headword, candidatePhrase) / headword.length(),
-                            abbrDistance.distance(candidatePhrase, headword) / candidatePhrase.length());
-
-                    if (normalOrthoDist <= orthoMax || normalAbbrDist <= abbrMax) {
-                        // todo: could be sped up a little (save double[] from before rather than re-dot)
-                        double semanticSim = emb.get(headword).dot(emb.get(candidatePhrase));
-                        double thisScore = overallScore(semanticSim, normalOrthoDist, normalAbbrDist);
-                        if (thisScore >= overallThreshold) {
-                            thesaurus.addPairing(new Thesaurus.FullEntry(headword, candidatePhrase, thisScore, semanticSim, normalOrthoDist, normalAbbrDist));
-                        }
+        build((headword, entries) -> {
+            for(Thesaurus.FullEntry entry : entries) {
+                thesaurus.addPairing(entry);
+            }
+        });
+        return thesaurus;
+    }
+
+    /**
+     * Build the thesaurus and write it to a stream as it is built, in the format of Thesaurus.save(),
+     * without holding the whole thesaurus in memory: each headword's entries are sorted and written
+     * as soon as that headword is finished.
+     * (Scoring symmetric pairs still holds the entries already found for headwords not yet reached.)
+     * When building one shard, writes a shard file for ThesaurusShards.merge() instead.
+     * @param output stream to write to (closed when done)
+     * @throws IOException
+     */
+    public void buildThesaurus(OutputStream output) throws IOException {
+        LOGGER.info("Streaming thesaurus to output stream " + output.toString());
+        ThesaurusWriter writer = nShards == 0 ? new ThesaurusWriter(output, caseSensitive, textProcessor)
+                : new ThesaurusWriter(output, caseSensitive, textProcessor,
+                        ThesaurusShards.shardLine(shard, nShards, shardByHash), emb::indexOf);
+        try {
+            build(writer::writeRow);
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Find and score pairs as buildThesaurus() does, but keep their raw scores rather than making a thesaurus,
+     * so that thesauri for any stricter thresholds and any weighting can be made from them quickly (for tuning).
+     * This maker's semantic, orthographic and abbreviation thresholds should be the loosest of those to be tried,
+     * and it should have no overall threshold.
+     * @return scores of every pair that passes this maker's thresholds
+     */
+    public PairScores buildPairScores() {
+        if(overallThreshold > -Double.MAX_VALUE) {
+            LOGGER.warning("Overall threshold " + overallThreshold + " is set; pair scores will lack pairs below it");
+        }
+        PairScores scores = new PairScores(embPhrases, caseSensitive, textProcessor, semanticThreshold, orthoMax, abbrMax,
+                embPhrases.size());
+        build((headword, entries) -> {
+            int h = emb.indexOf(headword);
+            for(Thesaurus.FullEntry entry : entries) {
+                scores.add(h, emb.indexOf(entry.p2), entry.semanticSimilarity, entry.orthoDistance, entry.abbrDistance);
+            }
+        });
+        return scores;
+    }
+
+    /**
+     * Update a thesaurus that was built with the same parameters from older embeddings, instead of building it again.
+     * Only phrases that are new or whose vectors changed are searched for and scored, both as headwords and
+     * as candidates for the other headwords; entries involving phrases no longer in the embeddings are dropped,
+     * and all other entries are kept as they are. This costs time proportional to the number of changed phrases
+     * times the vocabulary size, rather than to the square of the vocabulary size.
+     * With an exact semantic scan the result is the same as building the thesaurus from the new embeddings;
+     * with a neighbor index, entries for unchanged headwords are found by searching from the changed phrases.
+     * @param old the thesaurus built from the old embeddings
+     * @param oldEmb the old embeddings (normalized here, as the new ones are)
+     * @return a new thesaurus for the current embeddings
+     */
+    public Thesaurus updateThesaurus(Thesaurus old, Embeddings oldEmb) {
+        oldEmb.normalizeAll();
+        int n = embPhrases.size();
+        boolean[] changed = new boolean[n];
+        int[] changedIndices = new int[n];
+        int nChanged = 0;
+        int nAdded = 0;
+        for(int i=0; i<n; i++) {
+            Phrase phrase = embPhrases.get(i);
+            WordEmbedding before = oldEmb.get(phrase);
+            if(before == null || !before.equals(emb.get(phrase))) {
+                changed[i] = true;
+                changedIndices[nChanged++] = i;
+                if(before == null) nAdded++;
+            }
+        }
+        LOGGER.info("Updating thesaurus for " + nAdded + " new and " + (nChanged - nAdded) + " changed phrases");
+
+        // entries by headword index; unchanged pairs are kept from the old thesaurus
+        Map<Integer, List<Thesaurus.FullEntry>> rows = new HashMap<>();
+        for(Phrase headword : old) {
+            int h = emb.indexOf(headword);
+            if(h < 0 || changed[h]) continue;
+            for(Thesaurus.FullEntry entry : old.entries(headword)) {
+                int c = emb.indexOf(entry.p2);
+                if(c >= 0 && !changed[c]) {
+                    rows.computeIfAbsent(h, k -> new ArrayList<>()).add(entry);
+                }
+            }
+        }
+
+        // rows of changed headwords, and their columns in the rows of unchanged ones
+        for(int b=0; b<nChanged; b+=semanticBatchSize) {
+            int[] block = Arrays.copyOfRange(changedIndices, b, Math.min(nChanged, b + semanticBatchSize));
+            Neighbors[] matches;
+            if(neighborIndex != null) {
+                matches = new Neighbors[block.length];
+                for(int q=0; q<block.length; q++) {
+                    matches[q] = neighborIndex.findAllAbove(emb.get(embPhrases.get(block[q])), semanticThreshold);
+                }
+            } else {
+                matches = emb.findAllAbove(block, semanticThreshold);
+            }
+            for(int q=0; q<block.length; q++) {
+                int d = block[q];
+                Phrase phrase = embPhrases.get(d);
+                if(!textProcessor.containsDummyToken(phrase.toString())) {
+                    rows.put(d, scoreMatches(phrase, matches[q]));
+                }
+                for(int m=0; m<matches[q].size(); m++) {
+                    int h = matches[q].index(m);
+                    if(changed[h]) continue;
+                    Phrase headword = embPhrases.get(h);
+                    if(textProcessor.containsDummyToken(headword.toString())) continue;
+                    Thesaurus.FullEntry entry = scorePair(headword, phrase, matches[q].score(m));
+                    if(entry != null) {
+                        rows.computeIfAbsent(h, k -> new ArrayList<>()).add(entry);
                     }
                 }
             }
         }
 
+        // add headwords and their entries in the order a full build would (saving then sorts entries stably by score)
+        Thesaurus thesaurus = new Thesaurus(caseSensitive, textProcessor);
+        for(int i=0; i<n; i++) {
+            List<Thesaurus.FullEntry> entries = rows.get(i);
+            if(entries == null) continue;
+            entries.sort(Comparator.comparingInt(entry -> emb.indexOf(entry.p2)));
+            for(Thesaurus.FullEntry entry : entries) {
+                thesaurus.addPairing(entry);
+            }
+        }
         return thesaurus;
     }
 
     /**
-     * todo: document
-     * @param phrase
-     * @return
+     * Find the entries for every headword
+     * @param rows receives each headword with all of its entries (in the order they are added to a thesaurus),
+     *             one headword at a time in the order they are finished
+     */
+    private void build(BiConsumer<Phrase, List<Thesaurus.FullEntry>> rows) {
+        int n = embPhrases.size();
+        chooseCandidateOrder();
+        // entries for headwords not yet reached, found from earlier headwords when scoring symmetric pairs
+        // (so in ascending candidate order)
+        Map<Integer, List<Thesaurus.FullEntry>> pending = new HashMap<>();
+        ThesaurusCheckpoint checkpoint = null;
+        int start = 0;
+        if(checkpointFile != null) {
+            try {
+                checkpoint = new ThesaurusCheckpoint(checkpointFile, checkpointHash());
+                checkpoint.restore(rows, pending, emb::indexOf);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            start = checkpoint.getNextHeadword();
+        }
+        // headwords before end (and from start on) are processed; a range shard needs only its own range
+        int end = n;
+        if(nShards > 0 && !shardByHash) {
+            start = Math.max(start, ThesaurusShards.rangeBegin(shard, n, nShards));
+            end = ThesaurusShards.rangeBegin(shard + 1, n, nShards);
+        }
+        LOGGER.info("Finding matches for " + (end - start) + " headwords"
+                + (nShards > 0 ? " (only those in " + ThesaurusShards.shardLine(shard, nShards, shardByHash) + ")" : "")
+                + (parallelHeadwords ? " on " + Threading.getnThreads() + " threads" : "")
+                + (symmetricPairs ? ", scoring each pair once" : ""));
+        // without a checkpoint, sequential builds are one segment, and parallel ones are split to bound the entries held
+        int segmentSize = checkpoint != null ? checkpointInterval : parallelHeadwords ? PARALLEL_SEGMENT : Math.max(n, 1);
+        ForkJoinPool pool = parallelHeadwords ? new ForkJoinPool(Threading.getnThreads()) : null;
+        try {
+            for(int segmentStart = start; segmentStart < end; segmentStart += segmentSize) {
+                int segmentEnd = Math.min(end, segmentStart + segmentSize);
+                if(parallelHeadwords) {
+                    buildSegmentParallel(pool, rows, pending, segmentStart, segmentEnd, checkpoint);
+                } else {
+                    buildSegment(rows, pending, segmentStart, segmentEnd, checkpoint);
+                }
+                if(checkpoint != null) {
+                    checkpoint.commit(segmentEnd);
+                }
+            }
+        } finally {
+            if(pool != null) {
+                pool.shutdown();
+            }
+            if(checkpoint != null) {
+                try {
+                    checkpoint.close();
+                } catch(IOException e) {
+                    LOGGER.warning("Couldn't close checkpoint " + checkpointFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find matches for a range of headwords in order, threading only the semantic scan
+     */
+    private void buildSegment(BiConsumer<Phrase, List<Thesaurus.FullEntry>> rows, Map<Integer, List<Thesaurus.FullEntry>> pending, int begin, int end,
+                              ThesaurusCheckpoint checkpoint) {
+        BiConsumer<Integer, Thesaurus.FullEntry> addPending = (j, entry) -> {
+            pending.computeIfAbsent(j, k -> new ArrayList<>()).add(entry);
+            if(checkpoint != null && j >= end) {
+                checkpoint.writePending(entry);
+            }
+        };
+        // semantic matches for a block of headwords, used in order (when batching or scoring symmetric pairs;
+        // symmetric scans start after the block's first headword)
+        Neighbors[] blockMatches = null;
+        int blockPosition = 0;
+        for(int i=begin; i<end; i++) {
+            Phrase headword = embPhrases.get(i);
+            if(!inShard(i) || textProcessor.containsDummyToken(headword.toString())) continue;
+            if ((i + 1) % 1000 == 0) {
+                LOGGER.info((i + 1) + " words processed");
+            }
+            Neighbors matches = null;
+            if(candidateIndex != null) {
+                matches = orthographicMatches(i, symmetricPairs ? i + 1 : 0);
+            } else if(neighborIndex != null) {
+                matches = neighborIndex.findAllAbove(emb.get(headword), semanticThreshold);
+            } else if(semanticBatchSize > 1 || symmetricPairs) {
+                if(blockMatches == null || blockPosition == blockMatches.length) {
+                    blockMatches = emb.findAllAbove(headwordsFrom(i, end, semanticBatchSize), semanticThreshold,
+                            symmetricPairs ? i + 1 : 0);
+                    blockPosition = 0;
+                }
+                matches = blockMatches[blockPosition++];
+            }
+            List<Thesaurus.FullEntry> entries;
+            if(symmetricPairs) {
+                entries = pending.remove(i);
+                if(entries == null) {
+                    entries = new ArrayList<>();
+                }
+                scoreLaterMatches(i, matches, entries, addPending);
+            } else {
+                entries = scoreMatches(headword, matches == null ? getSemanticEquivalents(headword) : matches);
+            }
+            addRow(rows, headword, entries, checkpoint);
+        }
+    }
+
+    /**
+     * @return the indices of up to max headwords to find matches for, in order from begin (and before end)
+     */
+    private int[] headwordsFrom(int begin, int end, int max) {
+        int[] headwords = new int[Math.min(max, end - begin)];
+        int nHeadwords = 0;
+        for(int i=begin; i<end && nHeadwords<headwords.length; i++) {
+            if(inShard(i) && !textProcessor.containsDummyToken(embPhrases.get(i).toString())) {
+                headwords[nHeadwords++] = i;
+            }
+        }
+        return nHeadwords == headwords.length ? headwords : Arrays.copyOf(headwords, nHeadwords);
+    }
+
+    /**
+     * @return true if this build finds entries for a headword (always, unless building one shard)
+     */
+    private boolean inShard(int index) {
+        return nShards == 0 || ThesaurusShards.shardOf(index, embPhrases.size(), nShards, shardByHash) == shard;
+    }
+
+    /**
+     * Find matches for a range of headwords on a fork-join pool, then hand them over in order
+     */
+    private void buildSegmentParallel(ForkJoinPool pool, BiConsumer<Phrase, List<Thesaurus.FullEntry>> rows, Map<Integer, List<Thesaurus.FullEntry>> pending,
+                                      int begin, int end, ThesaurusCheckpoint checkpoint) {
+        ShardedEntrySink sink = new ShardedEntrySink(embPhrases.size());
+        pool.invoke(new HeadwordTask(begin, end, sink, new AtomicInteger(begin)));
+        SortedMap<Integer, List<Thesaurus.FullEntry>> found = sink.drain();
+        for(int i=begin; i<end; i++) {
+            List<Thesaurus.FullEntry> entries = pending.remove(i);
+            List<Thesaurus.FullEntry> foundHere = found.get(i);
+            if(entries == null) {
+                entries = foundHere == null ? Collections.emptyList() : foundHere;
+            } else if(foundHere != null) {
+                entries.addAll(foundHere);
+            }
+            addRow(rows, embPhrases.get(i), entries, checkpoint);
+        }
+        // entries found (from symmetric pairs) for headwords in later segments
+        for(Map.Entry<Integer, List<Thesaurus.FullEntry>> e : found.tailMap(end).entrySet()) {
+            pending.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+            if(checkpoint != null) {
+                for(Thesaurus.FullEntry entry : e.getValue()) {
+                    checkpoint.writePending(entry);
+                }
+            }
+        }
+    }
+
+    private void addRow(BiConsumer<Phrase, List<Thesaurus.FullEntry>> rows, Phrase headword, List<Thesaurus.FullEntry> entries,
+                        ThesaurusCheckpoint checkpoint) {
+        if(entries.isEmpty()) return;
+        rows.accept(headword, entries);
+        if(checkpoint != null) {
+            checkpoint.writeRow(headword, entries);
+        }
+    }
+
+    /**
+     * Hash of everything that determines which entries a build finds, for matching a checkpoint to a build
+     */
+    private long checkpointHash() {
+        String parameters = semanticThreshold + ";" + orthoMax + ";" + abbrMax + ";" + overallThreshold + ";"
+                + caseSensitive + ";" + permutationPenalty + ";" + semanticOrthoRatio + ";" + symmetricPairs + ";"
+                + textProcessor.getClass().getName() + ";"
+                + (neighborIndex == null ? "" : candidateIndex != null ? "exact" : neighborIndex.describe())
+                + (nShards == 0 ? "" : ";" + ThesaurusShards.shardLine(shard, nShards, shardByHash));
+        return 31 * emb.fingerprint() + parameters.hashCode();
+    }
+
+    /**
+     * Delete the checkpoint files of this build, if it has any (such as once the thesaurus has been saved)
+     * @throws IOException
+     */
+    public void deleteCheckpoint() throws IOException {
+        if(checkpointFile != null) {
+            ThesaurusCheckpoint.delete(checkpointFile);
+        }
+    }
+
+    /**
+     * Finds and scores the matches for a range of headwords.
+     * Ranges larger than one semantic batch are split in half, so idle threads can steal the other half.
+     */
+    private class HeadwordTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int begin;
+        private final int end;
+        private final ShardedEntrySink sink;
+        private final AtomicInteger processed;
+
+        HeadwordTask(int begin, int end, ShardedEntrySink sink, AtomicInteger processed) {
+            this.begin = begin;
+            this.end = end;
+            this.sink = sink;
+            this.processed = processed;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - begin > semanticBatchSize) {
+                int mid = (begin + end) >>> 1;
+                invokeAll(new HeadwordTask(begin, mid, sink, processed), new HeadwordTask(mid, end, sink, processed));
+                return;
+            }
+            int[] headwords = headwordsFrom(begin, end, end - begin);
+            int nHeadwords = headwords.length;
+            Neighbors[] matches;
+            if(candidateIndex != null) {
+                matches = new Neighbors[nHeadwords];
+                for(int h=0; h<nHeadwords; h++) {
+                    matches[h] = orthographicMatches(headwords[h], symmetricPairs ? headwords[h] + 1 : 0);
+                }
+            } else if(neighborIndex != null) {
+                matches = new Neighbors[nHeadwords];
+                for(int h=0; h<nHeadwords; h++) {
+                    matches[h] = neighborIndex.findAllAbove(emb.get(embPhrases.get(headwords[h])), semanticThreshold);
+                }
+            } else {
+                // symmetric: only later phrases are needed
+                matches = emb.findAllAboveUnthreaded(headwords, semanticThreshold, symmetricPairs ? begin + 1 : 0);
+            }
+            for(int h=0; h<nHeadwords; h++) {
+                int i = headwords[h];
+                // each headword's own group of entries is keyed by its index, and groups found from other headwords
+                // by theirs, so all entries drain in candidate order
+                if(symmetricPairs) {
+                    List<Thesaurus.FullEntry> entries = new ArrayList<>();
+                    scoreLaterMatches(i, matches[h], entries, (j, entry) -> sink.add(j, i, Collections.singletonList(entry)));
+                    sink.add(i, i, entries);
+                } else {
+                    sink.add(i, i, scoreMatches(embPhrases.get(i), matches[h]));
+                }
+            }
+            int before = processed.getAndAdd(end - begin);
+            if((before + end - begin) / 1000 > before / 1000) {
+                LOGGER.info((before + end - begin) + " words processed");
+            }
+        }
+    }
+
+    /**
+     * Score a headword against each of its semantic matches, keeping those that pass the thresholds.
+     * Safe to call from several threads at once
+     * @param headword the headword
+     * @param matches indices and similarities of phrases whose semantic similarity to the headword meets the
+     *                semantic threshold
+     * @return thesaurus entries for the headword, in the order of its matches
+     */
+    private List<Thesaurus.FullEntry> scoreMatches(Phrase headword, Neighbors matches) {
+        List<Thesaurus.FullEntry> entries = new ArrayList<>();
+        if(matches.size() > 1) {
+            LOGGER.info(matches.size() + " semantic matches found for " + headword);
+            for(int m=0; m<matches.size(); m++) {
+                Phrase candidatePhrase = embPhrases.get(matches.index(m));
+                if (candidatePhrase.equals(headword)) continue;
+                Thesaurus.FullEntry entry = scorePair(headword, candidatePhrase, matches.score(m));
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Score a headword against one of its semantic matches (other than itself).
+     * Safe to call from several threads at once
+     * @param semanticSim their semantic similarity, as found by the semantic scan
+     * @return the entry, or null if the pair doesn't pass the thresholds
+     */
+    private Thesaurus.FullEntry scorePair(Phrase headword, Phrase candidatePhrase, double semanticSim) {
+        double maxDist = maxDistanceFor(semanticSim);
+        if (textProcessor.containsDummyToken(candidatePhrase.toString())
+                || candidatePhrase.size() == 0
+                || maxDist < 0
+                || cannotPass(headword, candidatePhrase, false, maxDist)) return null;
+
+        double orthoLimit = distanceLimit(orthoMax, maxDist);
+        double abbrLimit = distanceLimit(abbrMax, maxDist);
+        double normalOrthoDist = normalOrthoDistance(headword, candidatePhrase, orthoLimit);
+        double normalAbbrDist = normalAbbrDistance(headword, candidatePhrase, abbrLimit);
+
+        if (normalOrthoDist <= orthoMax || normalAbbrDist <= abbrMax) {
+            // distances cut off at their limits can't change whether the pair passes, but its entry needs them
+            if (normalOrthoDist > orthoLimit) {
+                normalOrthoDist = normalOrthoDistance(headword, candidatePhrase, Double.POSITIVE_INFINITY);
+            }
+            if (normalAbbrDist > abbrLimit) {
+                normalAbbrDist = normalAbbrDistance(headword, candidatePhrase, Double.POSITIVE_INFINITY);
+            }
+            double thisScore = overallScore(semanticSim, normalOrthoDist, normalAbbrDist);
+            if (thisScore >= overallThreshold) {
+                return new Thesaurus.FullEntry(headword, candidatePhrase, thisScore, semanticSim, normalOrthoDist, normalAbbrDist);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Score a headword against each of its semantic matches with a higher index, computing distances once per pair,
+     * and keep the entries in either direction that pass the thresholds.
+     * Matches with a lower index are skipped; those pairs are scored from the other phrase.
+     * Safe to call from several threads at once
+     * @param headwordIndex index of the headword
+     * @param matches semantic matches of the headword and their similarities, in ascending index order
+     * @param entries list to add entries for the headword to, in ascending candidate order
+     * @param reverse receives the index of each candidate and its entry with the headword as its equivalent
+     */
+    private void scoreLaterMatches(int headwordIndex, Neighbors matches, List<Thesaurus.FullEntry> entries,
+                                   BiConsumer<Integer, Thesaurus.FullEntry> reverse) {
+        Phrase headword = embPhrases.get(headwordIndex);
+        if(matches.size() > 1) {
+            LOGGER.info(matches.size() + " semantic matches found for " + headword);
+        }
+        for(int m=0; m<matches.size(); m++) {
+            int j = matches.index(m);
+            if(j <= headwordIndex) continue;
+            Phrase candidatePhrase = embPhrases.get(j);
+            if(textProcessor.containsDummyToken(candidatePhrase.toString()) || candidatePhrase.size() == 0) continue;
+
+            double semanticSim = matches.score(m);
+            double maxDist = maxDistanceFor(semanticSim);
+            if(maxDist < 0) continue;
+            boolean permutedBothWays = permutationPenalty != null && headword.size() == candidatePhrase.size() && headword.size() > 1;
+            if(cannotPass(headword, candidatePhrase, permutedBothWays, maxDist)) continue;
+
+            double orthoLimit = distanceLimit(orthoMax, maxDist);
+            double abbrLimit = distanceLimit(abbrMax, maxDist);
+            double normalOrthoDist = normalOrthoDistance(headword, candidatePhrase, orthoLimit);
+            // which phrase gets permuted depends on argument order when both have the same number of words
+            double reverseOrthoDist = normalOrthoDist;
+            if(permutedBothWays) {
+                reverseOrthoDist = normalOrthoDistance(candidatePhrase, headword, orthoLimit);
+            }
+            double normalAbbrDist = normalAbbrDistance(headword, candidatePhrase, abbrLimit);
+
+            boolean forwardPasses = normalOrthoDist <= orthoMax || normalAbbrDist <= abbrMax;
+            boolean reversePasses = reverseOrthoDist <= orthoMax || normalAbbrDist <= abbrMax;
+            if(!forwardPasses && !reversePasses) continue;
+            // distances cut off at their limits can't change whether an entry passes, but the entries need them
+            if(normalAbbrDist > abbrLimit) {
+                normalAbbrDist = normalAbbrDistance(headword, candidatePhrase, Double.POSITIVE_INFINITY);
+            }
+            if(forwardPasses) {
+                if(normalOrthoDist > orthoLimit) {
+                    normalOrthoDist = normalOrthoDistance(headword, candidatePhrase, Double.POSITIVE_INFINITY);
+                }
+                double thisScore = overallScore(semanticSim, normalOrthoDist, normalAbbrDist);
+                if(thisScore >= overallThreshold) {
+                    entries.add(new Thesaurus.FullEntry(headword, candidatePhrase, thisScore, semanticSim, normalOrthoDist, normalAbbrDist));
+                }
+            }
+            if(reversePasses) {
+                if(reverseOrthoDist > orthoLimit) {
+                    reverseOrthoDist = normalOrthoDistance(candidatePhrase, headword, Double.POSITIVE_INFINITY);
+                }
+                double thisScore = overallScore(semanticSim, reverseOrthoDist, normalAbbrDist);
+                if(thisScore >= overallThreshold) {
+                    reverse.accept(j, new Thesaurus.FullEntry(candidatePhrase, headword, thisScore, semanticSim, reverseOrthoDist, normalAbbrDist));
+                }
+            }
+        }
+    }
+
+    /**
+     * The largest normalized distance (the smaller of orthographic and abbreviation) with which a pair of a given
+     * semantic similarity can still reach the overall threshold: the best overall score is at distance 0,
+     * and every unit of distance costs 1 / (semanticOrthoRatio + 1).
+     * Slightly generous, so that rounding never rejects a pair that would pass.
+     * @return the largest distance (negative if the pair can't pass at all), or positive infinity if there is no overall threshold
      */
-    private List<Phrase> getSemanticEquivalents(Phrase phrase) {
+    private double maxDistanceFor(double semanticSim) {
+        if(overallThreshold == -Double.MAX_VALUE || semanticOrthoRatio + 1 <= 0) return Double.POSITIVE_INFINITY;
+        return semanticOrthoRatio * semanticSim + 1 - overallThreshold * (semanticOrthoRatio + 1) + BOUND_SLACK;
+    }
+
+    /**
+     * The normalized distance beyond which a distance can't help a pair pass:
+     * it meets neither its own threshold nor, if there is one, the distance that the overall threshold allows
+     */
+    private static double distanceLimit(double threshold, double maxDist) {
+        return maxDist == Double.POSITIVE_INFINITY ? threshold : Math.max(threshold, maxDist);
+    }
+
+    /**
+     * Orthographic distance (including permutations) normalized to the longer phrase's length
+     * @param limit normalized distance beyond which the dynamic program may give up
+     * @return the distance if at most the limit; otherwise some larger value
+     */
+    private double normalOrthoDistance(Phrase phraseA, Phrase phraseB, double limit) {
+        int longer = Math.max(phraseA.length(), phraseB.length());
+        return orthoDistance.shortestPermutedDistanceWithin(phraseA, phraseB, permutationPenalty, limit * longer + BOUND_SLACK) / longer;
+    }
+
+    /**
+     * Abbreviation distance, normalized to *abbr length* (an asymmetric distance measure, unlike ortho),
+     * taking either phrase as the abbreviation
+     * @param limit normalized distance beyond which the dynamic programs may give up
+     * @return the distance if at most the limit; otherwise some larger value
+     */
+    private double normalAbbrDistance(Phrase headword, Phrase candidatePhrase, double limit) {
+        return Math.min(
+                abbrDistance.distanceWithin(headword, candidatePhrase, limit * headword.length() + BOUND_SLACK) / headword.length(),
+                abbrDistance.distanceWithin(candidatePhrase, headword, limit * candidatePhrase.length() + BOUND_SLACK) / candidatePhrase.length());
+    }
+
+    /**
+     * Check lower bounds on a pair's normalized distances, which cost far less than the distances themselves.
+     * A pair is rejected only if neither its orthographic distance nor its abbreviation distance could possibly
+     * meet its threshold, or neither could be small enough to reach the overall threshold,
+     * so the entries produced are unchanged
+     * @param bothWays whether the orthographic distance will also be computed with the phrases in the other order
+     * @param maxDist the largest distance that can reach the overall threshold (see maxDistanceFor())
+     * @return true if the pair certainly fails
+     */
+    private boolean cannotPass(Phrase headword, Phrase candidatePhrase, boolean bothWays, double maxDist) {
+        double abbrBound = Math.min(abbrDistance.lowerBound(headword, candidatePhrase) / headword.length(),
+                abbrDistance.lowerBound(candidatePhrase, headword) / candidatePhrase.length());
+        if(abbrBound <= abbrMax && abbrBound <= maxDist) return false;
+        int longer = Math.max(headword.length(), candidatePhrase.length());
+        double orthoBound = orthoDistance.permutedLowerBound(headword, candidatePhrase, permutationPenalty) / longer;
+        if(bothWays) {
+            orthoBound = Math.min(orthoBound, orthoDistance.permutedLowerBound(candidatePhrase, headword, permutationPenalty) / longer);
+        }
+        if(abbrBound > abbrMax && orthoBound > orthoMax) return true;
+        return Math.min(abbrBound, orthoBound) > maxDist;
+    }
+
+    /**
+     * Decide how this build finds candidates (see CandidateOrder), building the candidate index if it is needed.
+     * Choosing automatically finds and scores the matches of a sample of headwords both ways (with the semantic scan
+     * this build would use) and takes whichever was faster.
+     */
+    private void chooseCandidateOrder() {
+        candidateIndex = null;
+        if(candidateOrder == CandidateOrder.SEMANTIC || (candidateOrder == CandidateOrder.AUTO && neighborIndex != null)) {
+            return;
+        }
+        CandidateIndex index = new CandidateIndex(embPhrases, orthoDistance, orthoMax, abbrDistance, abbrMax, permutationPenalty);
+        if(candidateOrder == CandidateOrder.AUTO) {
+            int n = embPhrases.size();
+            int[] headwords = headwordsFrom(0, n, n);
+            if(headwords.length < ORDER_SAMPLE) {
+                LOGGER.info("Too few headwords to choose a candidate order; finding candidates semantically");
+                return;
+            }
+            // spread the sample over the vocabulary; half of it warms up both ways, and the other half is timed
+            int[] warmup = new int[ORDER_SAMPLE / 2];
+            int[] sample = new int[ORDER_SAMPLE / 2];
+            for(int s=0; s<ORDER_SAMPLE; s++) {
+                int i = headwords[(int) ((long) headwords.length * s / ORDER_SAMPLE)];
+                (s % 2 == 0 ? warmup : sample)[s / 2] = i;
+            }
+            sampleSemantically(warmup);
+            sampleOrthographically(index, warmup);
+            long semanticStart = System.nanoTime();
+            long semanticMatches = sampleSemantically(sample);
+            long orthographicStart = System.nanoTime();
+            long orthographicCandidates = sampleOrthographically(index, sample);
+            long orthographicEnd = System.nanoTime();
+            boolean orthographicFaster = orthographicEnd - orthographicStart < orthographicStart - semanticStart;
+            LOGGER.info(String.format("Sampled %d headwords: %.1f semantic matches each (%.1f ms), %.1f orthographic candidates each (%.1f ms); finding candidates %s",
+                    sample.length, (double) semanticMatches / sample.length, (orthographicStart - semanticStart) / 1e6,
+                    (double) orthographicCandidates / sample.length, (orthographicEnd - orthographicStart) / 1e6,
+                    orthographicFaster ? "orthographically" : "semantically"));
+            if(!orthographicFaster) return;
+        } else if(neighborIndex != null) {
+            LOGGER.info("Finding candidates orthographically; semantic similarities are exact, so the neighbor index isn't used");
+        }
+        candidateIndex = index;
+    }
+
+    /**
+     * Find and score the matches of some headwords as a semantic-order build would
+     * @return the number of semantic matches
+     */
+    private long sampleSemantically(int[] headwords) {
+        long nMatches = 0;
+        for(int b=0; b<headwords.length; b+=semanticBatchSize) {
+            int[] block = Arrays.copyOfRange(headwords, b, Math.min(headwords.length, b + semanticBatchSize));
+            Neighbors[] matches;
+            if(parallelHeadwords) {
+                matches = emb.findAllAboveUnthreaded(block, semanticThreshold);
+            } else if(semanticBatchSize > 1 || symmetricPairs) {
+                matches = emb.findAllAbove(block, semanticThreshold);
+            } else {
+                matches = new Neighbors[] {getSemanticEquivalents(embPhrases.get(block[0]))};
+            }
+            for(int q=0; q<block.length; q++) {
+                nMatches += matches[q].size();
+                scoreMatches(embPhrases.get(block[q]), matches[q]);
+            }
+        }
+        return nMatches;
+    }
+
+    /**
+     * Find and score the matches of some headwords as an orthographic-order build would
+     * @return the number of orthographic candidates
+     */
+    private long sampleOrthographically(CandidateIndex index, int[] headwords) {
+        long nCandidates = 0;
+        for(int i : headwords) {
+            int[] candidates = index.candidates(i, 0);
+            nCandidates += candidates.length;
+            scoreMatches(embPhrases.get(i), semanticMatches(i, candidates));
+        }
+        return nCandidates;
+    }
+
+    /**
+     * Find a headword's matches orthographically: the phrases that could pass the orthographic or abbreviation
+     * threshold with it and whose semantic similarity to it meets the semantic threshold
+     * @param beginRow index of the first phrase to consider
+     * @return their indices and similarities in ascending index order (the same as a scan finds among them)
+     */
+    private Neighbors orthographicMatches(int headwordIndex, int beginRow) {
+        return semanticMatches(headwordIndex, candidateIndex.candidates(headwordIndex, beginRow));
+    }
+
+    /**
+     * @param candidates indices of phrases, in ascending order
+     * @return those candidates whose semantic similarity to a headword meets the semantic threshold, with their similarities
+     */
+    private Neighbors semanticMatches(int headwordIndex, int[] candidates) {
+        WordEmbedding headwordVector = emb.get(embPhrases.get(headwordIndex));
+        Neighbors matches = new Neighbors();
+        for(int c : candidates) {
+            double similarity = emb.dot(headwordVector, c);
+            if(similarity >= semanticThreshold) {
+                matches.add(c, similarity);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Find all phrases whose semantic similarity with a phrase meets the semantic threshold
+     * @param phrase a phrase in the embeddings
+     * @return indices and similarities of matching phrases (including the phrase itself), in embeddings order
+     */
+    private Neighbors getSemanticEquivalents(Phrase phrase) {
         int n = emb.size();
         final WordEmbedding compVector = emb.get(phrase);
-        double[] scores = emb.calculateScoresThreaded(compVector);
-        List<Phrase> matches = new ArrayList<>();
+        double[] scores = emb.calculateScoresThreaded(compVector, semanticThreshold);
+        Neighbors matches = new Neighbors();
         for(int i=0; i<n; i++) {
             if(scores[i] >= semanticThreshold) {
-                matches.add(embPhrases.get(i));
+                matches.add(i, scores[i]);
             }
         }
         return matches;
@@ -239,6 +1044,10 @@ public class ThesaurusMaker {
      * @return
      */
     public double overallScore(double semanticSim, double orthoDist, double abbrDist) {
+        return overallScore(semanticOrthoRatio, semanticSim, orthoDist, abbrDist);
+    }
+
+    static double overallScore(double semanticOrthoRatio, double semanticSim, double orthoDist, double abbrDist) {
         return (semanticOrthoRatio * semanticSim + 1 - Math.min(orthoDist, abbrDist)) / (semanticOrthoRatio + 1);
     }
 
@@ -0,0 +1,179 @@
+package thesaurus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Splitting a thesaurus build into shards that separate processes (on one machine or several) build independently,
+ * and merging their output into the thesaurus a single build would have written.
+ *
+ * Headwords are assigned to shards by their index in the (filtered) embeddings, either in contiguous ranges
+ * or by a hash of the index (which spreads expensive and cheap parts of the vocabulary evenly).
+ * A shard file has the header of a saved thesaurus, then a line naming the shard, then one line per headword:
+ * the headword's index, a tab, and the row as Thesaurus.save() writes it.
+ * merge() reads all shard files at once and writes their rows in index order (a k-way merge),
+ * holding only one row per shard in memory.
+ */
+public class ThesaurusShards {
+
+    private static final Logger LOGGER = Logger.getLogger(ThesaurusShards.class.getName());
+
+    private static final String SHARD_LINE_FORMAT = "shard %d of %d by %s";
+
+    private ThesaurusShards() {
+    }
+
+    /**
+     * Parse a shard specification of the form "i/N" (shard i, counting from 0, of N)
+     * @return {i, N}
+     */
+    public static int[] parseSpec(String spec) {
+        String[] parts = spec.split("/");
+        if(parts.length != 2) {
+            throw new IllegalArgumentException("Shard should be given as i/N: " + spec);
+        }
+        int shard = Integer.parseInt(parts[0].trim());
+        int nShards = Integer.parseInt(parts[1].trim());
+        if(nShards < 1 || shard < 0 || shard >= nShards) {
+            throw new IllegalArgumentException("No shard " + shard + " of " + nShards);
+        }
+        return new int[] {shard, nShards};
+    }
+
+    /**
+     * @param index index of a headword
+     * @param n number of headwords
+     * @param nShards number of shards
+     * @param byHash whether to assign headwords by hash (otherwise by contiguous range)
+     * @return the shard the headword belongs to
+     */
+    static int shardOf(int index, int n, int nShards, boolean byHash) {
+        if(byHash) {
+            int h = index * 0x9e3779b9;
+            return Integer.remainderUnsigned(h ^ (h >>> 16), nShards);
+        }
+        return (int) ((long) index * nShards / n);
+    }
+
+    /**
+     * @return the first index of a range shard
+     */
+    static int rangeBegin(int shard, int n, int nShards) {
+        return (int) (((long) shard * n + nShards - 1) / nShards);
+    }
+
+    static String shardLine(int shard, int nShards, boolean byHash) {
+        return String.format(SHARD_LINE_FORMAT, shard, nShards, byHash ? "hash" : "range");
+    }
+
+    /**
+     * Merge shard files into one thesaurus, as saved by Thesaurus.save().
+     * Every shard of the build must be present exactly once, and all must share the same header.
+     * @param shardFiles the shard files, in any order
+     * @param output stream to write the thesaurus to (closed when done)
+     * @throws IOException if a file can't be read, isn't a shard file, or shards are missing or repeated
+     */
+    public static void merge(List<Path> shardFiles, OutputStream output) throws IOException {
+        List<ShardReader> shards = new ArrayList<>();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(output), 1 << 16)) {
+            String header = null;
+            String byWhat = null;
+            boolean[] seen = null;
+            for(Path file : shardFiles) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file)), 1 << 16);
+                ShardReader shard = new ShardReader(reader, shards.size());
+                shards.add(shard);
+                String thisHeader = reader.readLine() + "\n" + reader.readLine() + "\n";
+                String shardLine = reader.readLine();
+                String[] words = shardLine == null ? new String[0] : shardLine.split(" ");
+                if(words.length != 6 || !words[0].equals("shard") || !words[2].equals("of")) {
+                    throw new IOException(file + " is not a thesaurus shard file");
+                }
+                int shardNumber = Integer.parseInt(words[1]);
+                int nShards = Integer.parseInt(words[3]);
+                if(header == null) {
+                    header = thisHeader;
+                    byWhat = words[5];
+                    seen = new boolean[nShards];
+                } else if(!header.equals(thisHeader) || !byWhat.equals(words[5]) || seen.length != nShards) {
+                    throw new IOException(file + " is from a different build than " + shardFiles.get(0));
+                }
+                if(shardNumber < 0 || shardNumber >= nShards) {
+                    throw new IOException(file + " names shard " + shardNumber + " of " + nShards);
+                }
+                if(seen[shardNumber]) {
+                    throw new IOException("Shard " + shardNumber + " is given more than once");
+                }
+                seen[shardNumber] = true;
+            }
+            if(header == null) {
+                throw new IOException("No shard files to merge");
+            }
+            for(int s=0; s<seen.length; s++) {
+                if(!seen[s]) {
+                    throw new IOException("Shard " + s + " of " + seen.length + " is missing");
+                }
+            }
+            LOGGER.info("Merging " + seen.length + " thesaurus shards");
+
+            writer.write(header);
+            PriorityQueue<ShardReader> queue = new PriorityQueue<>(
+                    Comparator.comparingLong((ShardReader s) -> s.index).thenComparingInt(s -> s.order));
+            for(ShardReader shard : shards) {
+                if(shard.advance()) queue.add(shard);
+            }
+            while(!queue.isEmpty()) {
+                ShardReader shard = queue.poll();
+                writer.write(shard.row);
+                writer.write("\n");
+                if(shard.advance()) queue.add(shard);
+            }
+        } finally {
+            for(ShardReader shard : shards) {
+                shard.reader.close();
+            }
+        }
+    }
+
+    /**
+     * The next row of one shard file
+     */
+    private static class ShardReader {
+        private final BufferedReader reader;
+        private final int order;
+        private long index;
+        private String row;
+
+        ShardReader(BufferedReader reader, int order) {
+            this.reader = reader;
+            this.order = order;
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        boolean advance() throws IOException {
+            String line = reader.readLine();
+            if(line == null) return false;
+            int tab = line.indexOf('\t');
+            if(tab < 0) {
+                throw new IOException("Malformed thesaurus shard line: " + line);
+            }
+            index = Long.parseLong(line.substring(0, tab));
+            row = line.substring(tab + 1);
+            return true;
+        }
+    }
+}
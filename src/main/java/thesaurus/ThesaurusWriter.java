@@ -0,0 +1,69 @@
+package thesaurus;
+
+import phrases.Phrase;
+import textprocessing.TextProcessor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Writes a thesaurus one headword at a time, in the same format as Thesaurus.save() (readable by Thesaurus.load()),
+ * so that the whole thesaurus never has to be held in memory.
+ * Each headword should be written once, with all of its entries.
+ * Can also write one shard of a thesaurus, in the format ThesaurusShards.merge() reads.
+ */
+class ThesaurusWriter {
+
+    private final Writer writer;
+    // gives the index that prefixes each row of a shard file (null for a whole thesaurus)
+    private final ToIntFunction<Phrase> rowIndex;
+
+    ThesaurusWriter(OutputStream output, boolean caseSensitive, TextProcessor textProcessor) throws IOException {
+        this(output, caseSensitive, textProcessor, null, null);
+    }
+
+    /**
+     * @param shardLine line naming the shard, written after the header (null for a whole thesaurus)
+     * @param rowIndex gives the index of each headword, to prefix its row with (null for a whole thesaurus)
+     */
+    ThesaurusWriter(OutputStream output, boolean caseSensitive, TextProcessor textProcessor, String shardLine,
+                    ToIntFunction<Phrase> rowIndex) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(output), 1 << 16);
+        this.rowIndex = rowIndex;
+        Thesaurus.writeHeader(writer, caseSensitive, textProcessor);
+        if(shardLine != null) {
+            writer.write(shardLine);
+            writer.write("\n");
+        }
+    }
+
+    /**
+     * Write a headword's entries, best first (skipped if there are none)
+     */
+    void writeRow(Phrase headword, List<Thesaurus.FullEntry> entries) {
+        if(entries.isEmpty()) return;
+        List<Thesaurus.FullEntry> sorted = new ArrayList<>(entries);
+        sorted.sort(Thesaurus.BY_OVERALL_SCORE);
+        try {
+            if(rowIndex != null) {
+                writer.write(String.valueOf(rowIndex.applyAsInt(headword)));
+                writer.write("\t");
+            }
+            writer.write(Thesaurus.formatRow(headword, sorted));
+            writer.write("\n");
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,116 @@
+package thesaurus;
+
+import phrases.Phrase;
+
+import java.util.List;
+
+/**
+ * Branch-and-bound search for the shortest distance between a phrase with its words reordered and another phrase,
+ * over every order but the original (as OrthographicDistance.shortestPermutedDistance() needs).
+ *
+ * Orders are built a word at a time, depth first. The alignment of each prefix is computed once and extended by
+ * every word that can follow it, so orders that share a prefix share its work, and a prefix is abandoned as soon as
+ * the least that any alignment through it could cost exceeds the best distance found so far (or the maximum).
+ * Subclasses hold the state of the alignment after each prefix and compute those bounds.
+ * Repeated words are placed in only one order, so each distinct ordering is aligned once.
+ */
+abstract class WordPermutations {
+
+    // the words of the phrase being permuted: as written (to tell orderings apart) and as compared
+    private final String[] words;
+    private final char[][] wordChars;
+    private final int length;
+    private final boolean[] used;
+
+    private double best;
+    private double limit;
+
+    /**
+     * @param phrase the phrase whose words are permuted
+     * @param chars its characters as the distance compares them
+     */
+    WordPermutations(Phrase phrase, char[] chars) {
+        List<String> phraseWords = phrase.getWords();
+        words = phraseWords.toArray(new String[phraseWords.size()]);
+        wordChars = new char[words.length][];
+        int start = 0;
+        for(int w=0; w<words.length; w++) {
+            int end = start;
+            while(end < chars.length && chars[end] != ' ') end++;
+            wordChars[w] = new char[end - start];
+            System.arraycopy(chars, start, wordChars[w], 0, end - start);
+            start = end + 1;
+        }
+        length = chars.length;
+        used = new boolean[words.length];
+    }
+
+    /**
+     * Set up the alignment of the empty prefix (depth 0)
+     */
+    abstract void start();
+
+    /**
+     * Align a longer prefix: the prefix at some depth followed by a space (unless the depth is 0) and a word
+     * @param remaining the number of characters of the permuted phrase that will follow the word
+     * @param limit the largest distance of interest
+     * @return false if every alignment through the new prefix certainly costs more than the limit
+     */
+    abstract boolean extend(int depth, char[] word, int remaining, double limit);
+
+    /**
+     * @return the distance of the alignment of a whole ordering that ends at this depth
+     */
+    abstract double distance(int depth);
+
+    /**
+     * @return number of words of the phrase being permuted
+     */
+    int size() {
+        return words.length;
+    }
+
+    /**
+     * @param maxCost the largest distance of interest
+     * @return the shortest distance of any order of the words except the original one if it is at most maxCost;
+     *         otherwise some larger value (positive infinity if there is no other order)
+     */
+    double shortest(double maxCost) {
+        best = Double.POSITIVE_INFINITY;
+        limit = maxCost;
+        if(words.length > 1) {
+            start();
+            search(0, 0, true);
+        }
+        return best;
+    }
+
+    private void search(int depth, int placed, boolean original) {
+        for(int w=0; w<words.length; w++) {
+            if(used[w] || repeatsEarlierWord(w)) continue;
+            boolean stillOriginal = original && words[w].equals(words[depth]);
+            int remaining = length - placed - (depth > 0 ? 1 : 0) - wordChars[w].length;
+            if(!extend(depth, wordChars[w], remaining, limit)) continue;
+            if(depth + 1 == words.length) {
+                if(!stillOriginal) {
+                    best = Math.min(best, distance(depth + 1));
+                    limit = Math.min(limit, best);
+                }
+            } else {
+                used[w] = true;
+                search(depth + 1, length - remaining, stillOriginal);
+                used[w] = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if an unused word before this one is the same (so this one's orders have all been tried)
+     */
+    private boolean repeatsEarlierWord(int w) {
+        for(int v=0; v<w; v++) {
+            if(!used[v] && words[v].equals(words[w])) return true;
+        }
+        return false;
+    }
+}
@@ -1,7 +1,9 @@
 package util;
 
+import semantics.QuantizedVectors;
 import textprocessing.ModerateProcessor;
 import textprocessing.TextProcessor;
+import thesaurus.ThesaurusMaker;
 
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -118,6 +120,10 @@ public class PropertiesLoader {
         return Boolean.parseBoolean(properties.getProperty("embeddingsCaseSensitive"));
     }
 
+    public static boolean getMapEmbeddings() {
+        return Boolean.parseBoolean(properties.getProperty("mapEmbeddings"));
+    }
+
     public static boolean getThesaurusKeepScore() {
         return Boolean.parseBoolean(properties.getProperty("thesaurusKeepScore"));
     }
@@ -134,6 +140,98 @@ public class PropertiesLoader {
         }
     }
 
+    public static int getSemanticBatchSize() {
+        String batchSize = properties.getProperty("semanticBatchSize");
+        return batchSize == null ? 1 : Integer.parseInt(batchSize);
+    }
+
+    public static boolean getParallelHeadwords() {
+        return Boolean.parseBoolean(properties.getProperty("parallelHeadwords"));
+    }
+
+    public static boolean getSymmetricPairs() {
+        return Boolean.parseBoolean(properties.getProperty("symmetricPairs"));
+    }
+
+    public static int getCheckpointInterval() {
+        String interval = properties.getProperty("checkpointInterval");
+        return interval == null ? 0 : Integer.parseInt(interval);
+    }
+
+    public static boolean getStreamThesaurus() {
+        return Boolean.parseBoolean(properties.getProperty("streamThesaurus"));
+    }
+
+    /**
+     * @return true to assign headwords to shards by hash, false for contiguous ranges
+     */
+    public static boolean getShardByHash() {
+        String shardBy = properties.getProperty("shardBy");
+        if(shardBy == null || shardBy.equals("range")) return false;
+        if(shardBy.equals("hash")) return true;
+        throw new IllegalArgumentException("Unknown shardBy: " + shardBy);
+    }
+
+    /**
+     * @return the quantization to use for semantic scans, or null for none
+     */
+    public static QuantizedVectors.Mode getEmbeddingQuantization() {
+        String mode = properties.getProperty("embeddingQuantization");
+        if(mode == null || mode.trim().isEmpty() || mode.trim().equalsIgnoreCase("none")) {
+            return null;
+        }
+        return QuantizedVectors.Mode.valueOf(mode.trim().toUpperCase());
+    }
+
+    /**
+     * @return how ThesaurusMaker should find the candidates for each headword
+     */
+    public static ThesaurusMaker.CandidateOrder getCandidateOrder() {
+        String order = properties.getProperty("candidateOrder");
+        if(order == null || order.trim().isEmpty()) {
+            return ThesaurusMaker.CandidateOrder.SEMANTIC;
+        }
+        return ThesaurusMaker.CandidateOrder.valueOf(order.trim().toUpperCase());
+    }
+
+    /**
+     * @return the kind of index to find semantic matches with ("none" to scan all embeddings)
+     */
+    public static String getSemanticIndex() {
+        String index = properties.getProperty("semanticIndex");
+        return index == null ? "none" : index.trim().toLowerCase();
+    }
+
+    public static int getHnswM() {
+        String m = properties.getProperty("hnswM");
+        return m == null ? 16 : Integer.parseInt(m);
+    }
+
+    public static int getHnswEfConstruction() {
+        String ef = properties.getProperty("hnswEfConstruction");
+        return ef == null ? 200 : Integer.parseInt(ef);
+    }
+
+    public static int getHnswEfSearch() {
+        String ef = properties.getProperty("hnswEfSearch");
+        return ef == null ? 100 : Integer.parseInt(ef);
+    }
+
+    public static int getLshBits() {
+        String bits = properties.getProperty("lshBits");
+        return bits == null ? 12 : Integer.parseInt(bits);
+    }
+
+    public static int getLshTables() {
+        String tables = properties.getProperty("lshTables");
+        return tables == null ? 32 : Integer.parseInt(tables);
+    }
+
+    public static int getLshProbeRadius() {
+        String radius = properties.getProperty("lshProbeRadius");
+        return radius == null ? 2 : Integer.parseInt(radius);
+    }
+
     public static Path getMrconsoPath() {
         return Paths.get(properties.getProperty("metathesaurusHome")).resolve("MRCONSO.RRF");
     }
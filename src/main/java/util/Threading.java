@@ -98,6 +98,20 @@ public class Threading {
             this.end = end;
         }
 
+        /**
+         * @return the first index processed by this thread
+         */
+        public int getBegin() {
+            return begin;
+        }
+
+        /**
+         * @return one past the last index processed by this thread
+         */
+        public int getEnd() {
+            return end;
+        }
+
         /**
          * Parse and cast the objects in this array to set up variables for processing.
          * Pass the same objects as the final arguments to chunkAndThread.
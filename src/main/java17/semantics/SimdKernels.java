@@ -0,0 +1,72 @@
+package semantics;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Elementwise kernels using the incubating Vector API (jdk.incubator.vector), which compiles to SIMD instructions
+ * of the widest width the hardware supports.
+ * Sums (dot products and squared distances) are inherited from the scalar kernels: their order of addition fixes
+ * the result, and adding products in that order leaves nothing for vector instructions to gain,
+ * while adding them in lanes would make scores depend on the JDK and the hardware.
+ *
+ * Only built on Java 17+ (see the vector-api profile in pom.xml) and loaded reflectively by VectorKernels.
+ */
+final class SimdKernels extends VectorKernels.Scalar {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // four floats widened to four doubles, for division
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_128;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_256;
+
+    SimdKernels() {}
+
+    @Override
+    void add(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for(; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, aOffset + i)
+                    .add(FloatVector.fromArray(SPECIES, b, bOffset + i))
+                    .intoArray(a, aOffset + i);
+        }
+        for(; i < length; i++) {
+            a[aOffset + i] += b[bOffset + i];
+        }
+    }
+
+    @Override
+    void subtract(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for(; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, aOffset + i)
+                    .sub(FloatVector.fromArray(SPECIES, b, bOffset + i))
+                    .intoArray(a, aOffset + i);
+        }
+        for(; i < length; i++) {
+            a[aOffset + i] -= b[bOffset + i];
+        }
+    }
+
+    @Override
+    void divide(float[] a, int offset, int length, double divisor) {
+        // divide in doubles and round back to float, as a[i] /= divisor does
+        int i = 0;
+        for(; i + 3 < length; i += 4) {
+            DoubleVector quotient = ((DoubleVector) FloatVector.fromArray(FLOATS, a, offset + i)
+                    .convertShape(VectorOperators.F2D, DOUBLES, 0)).div(divisor);
+            ((FloatVector) quotient.convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(a, offset + i);
+        }
+        for(; i < length; i++) {
+            a[offset + i] /= divisor;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Vector API kernels (" + SPECIES.length() + " floats per vector)";
+    }
+}